@@ -0,0 +1,359 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator that replays a map-session trace against a running MapServer and reports
+ * throughput and latency percentiles per endpoint. The trace is either recorded (one request
+ * per line: "millisOffset /path?query") or synthesized to mimic map.js: bursts of /raster while
+ * panning and zooming, one /search per keystroke followed by a full search, and routed rasters.
+ * <p>
+ * Requests are sent open-loop: each is due at its trace time whether or not earlier requests
+ * have finished, and its latency is measured from when it was due, so a backed-up server shows
+ * up in the percentiles instead of silently slowing the load down. At most
+ * <code>--concurrency</code> requests are in flight; the rest wait, and that wait is counted.
+ * </p>
+ * Run with the bench profile, e.g.
+ * <pre>
+ * mvn -Pbench compile exec:java -Dexec.mainClass=LoadTest \
+ *     -Dexec.args="--in-process --sessions 50 --duration 60 --concurrency 32"
+ * </pre>
+ * Options: --url (default http://localhost:4567), --in-process (start MapServer in this JVM),
+ * --trace FILE (replay), --write-trace FILE (save the synthetic trace), --sessions N,
+ * --duration SECONDS, --speed FACTOR (replay faster or slower), --concurrency N, --seed N,
+ * --stream (request streamed rasters; compare the ttfb columns against a run without it),
+ * --fit (request rasters fitted to the window; compare the MB column against a run without it).
+ * <p>
+ * In-process runs also report the server's GC pauses and its heap and direct memory in use;
+ * compare them against a run with -Dbearmaps.tileCacheTiles=0, which disables the off-heap
+ * tile cache.
+ * </p>
+ */
+public class LoadTest {
+
+    /** Window size sent with every raster request. */
+    private static final int W = 1280, H = 800;
+    /** Ratio of latitude to longitude degrees per pixel, as used by map.js. */
+    private static final double LAT_PER_LON = 0.79;
+    private static final String[] WORDS = {"sushi", "pizza", "coffee", "berkeley", "bank",
+        "cafe", "thai", "library", "park", "market", "burger", "taqueria", "college", "peets"};
+
+    /** One request of a trace, due <code>atMillis</code> after the start of the run. */
+    static class Request {
+        final long atMillis;
+        final String path;
+
+        Request(long atMillis, String path) {
+            this.atMillis = atMillis;
+            this.path = path;
+        }
+
+        String endpoint() {
+            int q = path.indexOf('?');
+            return q < 0 ? path : path.substring(0, q);
+        }
+    }
+
+    /** Latencies and outcomes of the requests to one endpoint. */
+    static class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        /** Time from when the request was due until its response headers arrived. */
+        final LatencyHistogram firstByte = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:4567";
+        String trace = null;
+        String writeTrace = null;
+        boolean inProcess = false;
+        int sessions = 20;
+        int durationSeconds = 60;
+        double speed = 1.0;
+        int concurrency = 16;
+        long seed = 61;
+        boolean stream = false;
+        boolean fit = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url": url = args[++i]; break;
+                case "--trace": trace = args[++i]; break;
+                case "--write-trace": writeTrace = args[++i]; break;
+                case "--in-process": inProcess = true; break;
+                case "--sessions": sessions = Integer.parseInt(args[++i]); break;
+                case "--duration": durationSeconds = Integer.parseInt(args[++i]); break;
+                case "--speed": speed = Double.parseDouble(args[++i]); break;
+                case "--concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--stream": stream = true; break;
+                case "--fit": fit = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        List<Request> requests = trace != null ? readTrace(trace)
+                : syntheticTrace(sessions, durationSeconds * 1000L, seed);
+        if (stream) {
+            /* Ask for streamed rasters, to compare time to first byte with the Json response. */
+            requests = withRasterFlag(requests, "stream");
+        }
+        if (fit) {
+            /* Ask for rasters cropped and scaled to the window, to compare bytes sent. */
+            requests = withRasterFlag(requests, "fit");
+        }
+        if (writeTrace != null) {
+            writeTrace(requests, writeTrace);
+        }
+        if (inProcess) {
+            MapServer.main(new String[0]);
+            spark.Spark.awaitInitialization();
+        }
+        System.out.println("Replaying " + requests.size() + " requests against " + url);
+        long start = System.nanoTime();
+        Map<String, Result> results = run(url, requests, concurrency, speed);
+        report(results, (System.nanoTime() - start) / 1e9);
+        if (inProcess) {
+            reportMemory();
+            spark.Spark.stop();
+        }
+    }
+
+    /** The requests, with <code>flag</code> set on each raster request. */
+    private static List<Request> withRasterFlag(List<Request> requests, String flag) {
+        List<Request> flagged = new ArrayList<>();
+        for (Request r : requests) {
+            flagged.add(r.endpoint().equals("/raster")
+                    ? new Request(r.atMillis, r.path + "&" + flag + "=true") : r);
+        }
+        return flagged;
+    }
+
+    /**
+     * Synthesize <code>sessions</code> map sessions starting at random times within
+     * <code>durationMillis</code>, each lasting until the end of the run.
+     */
+    public static List<Request> syntheticTrace(int sessions, long durationMillis, long seed) {
+        Random random = new Random(seed);
+        List<Request> requests = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            long t = (long) (random.nextDouble() * durationMillis / 4);
+            double ullon = -122.27625 + (random.nextDouble() - 0.5) * 0.02;
+            double ullat = 37.88 + (random.nextDouble() - 0.5) * 0.02;
+            double width = 0.05625;
+            requests.add(new Request(t, raster(ullon, ullat, width, null)));
+            while (t < durationMillis) {
+                double action = random.nextDouble();
+                if (action < 0.5) {
+                    /* Pan: a burst of rasters as the view is dragged and released. */
+                    int steps = 2 + random.nextInt(4);
+                    double dx = (random.nextDouble() - 0.5) * width / 3;
+                    double dy = (random.nextDouble() - 0.5) * width / 3;
+                    for (int i = 0; i < steps; i++) {
+                        t += 150 + random.nextInt(250);
+                        ullon += dx;
+                        ullat += dy;
+                        requests.add(new Request(t, raster(ullon, ullat, width, null)));
+                    }
+                } else if (action < 0.7) {
+                    /* Zoom in or out around the current view. */
+                    t += 400 + random.nextInt(800);
+                    width = random.nextBoolean() ? Math.max(width / 2, 0.0005)
+                            : Math.min(width * 2, 0.1);
+                    requests.add(new Request(t, raster(ullon, ullat, width, null)));
+                } else if (action < 0.9) {
+                    /* Search: autocomplete on every keystroke from the second, then select. */
+                    String word = WORDS[random.nextInt(WORDS.length)];
+                    String center = String.format(Locale.ROOT, "&lon=%.8f&lat=%.8f",
+                            ullon + width / 2, ullat - width * H / W * LAT_PER_LON / 2);
+                    for (int i = 2; i <= word.length(); i++) {
+                        t += 120 + random.nextInt(200);
+                        requests.add(new Request(t,
+                                "/search?term=" + word.substring(0, i) + center));
+                    }
+                    t += 500 + random.nextInt(1500);
+                    requests.add(new Request(t,
+                            "/search?full=true&term=" + encode(word) + center));
+                } else {
+                    /* Route between two points in the view, then keep it on screen. */
+                    double[] route = {ullon + random.nextDouble() * width,
+                        ullat - random.nextDouble() * width * H / W * LAT_PER_LON,
+                        ullon + random.nextDouble() * width,
+                        ullat - random.nextDouble() * width * H / W * LAT_PER_LON};
+                    for (int i = 0; i < 3; i++) {
+                        t += 300 + random.nextInt(700);
+                        requests.add(new Request(t, raster(ullon, ullat, width, route)));
+                    }
+                }
+                /* Think time between actions. */
+                t += 1000 + random.nextInt(4000);
+            }
+        }
+        requests.removeIf(r -> r.atMillis >= durationMillis);
+        requests.sort((a, b) -> Long.compare(a.atMillis, b.atMillis));
+        return requests;
+    }
+
+    private static String raster(double ullon, double ullat, double width, double[] route) {
+        StringBuilder path = new StringBuilder("/raster?");
+        path.append(String.format(Locale.ROOT, "ullon=%.8f&ullat=%.8f&lrlon=%.8f&lrlat=%.8f",
+                ullon, ullat, ullon + width, ullat - width * H / W * LAT_PER_LON));
+        path.append("&w=").append(W).append("&h=").append(H);
+        if (route != null) {
+            path.append(String.format(Locale.ROOT,
+                    "&start_lon=%.8f&start_lat=%.8f&end_lon=%.8f&end_lat=%.8f",
+                    route[0], route[1], route[2], route[3]));
+        }
+        return path.toString();
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static List<Request> readTrace(String file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                requests.add(new Request(Long.parseLong(line.substring(0, space)),
+                        line.substring(space + 1).trim()));
+            }
+        }
+        requests.sort((a, b) -> Long.compare(a.atMillis, b.atMillis));
+        return requests;
+    }
+
+    public static void writeTrace(List<Request> requests, String file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(file))) {
+            out.write("# millisOffset path\n");
+            for (Request r : requests) {
+                out.write(r.atMillis + " " + r.path + "\n");
+            }
+        }
+    }
+
+    /**
+     * Send every request of the trace at its due time, scaled by 1 / <code>speed</code>, with at
+     * most <code>concurrency</code> in flight, and collect the results per endpoint.
+     */
+    public static Map<String, Result> run(String baseUrl, List<Request> requests,
+                                          int concurrency, double speed)
+            throws InterruptedException {
+        Map<String, Result> results = new TreeMap<>();
+        for (Request r : requests) {
+            results.computeIfAbsent(r.endpoint(), e -> new Result());
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (Request r : requests) {
+            long due = start + (long) (r.atMillis * 1e6 / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            Result result = results.get(r.endpoint());
+            workers.execute(() -> {
+                try {
+                    result.bytes.add(get(baseUrl + r.path, result.firstByte, due));
+                } catch (IOException e) {
+                    result.errors.increment();
+                }
+                result.latency.recordSince(due);
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        return results;
+    }
+
+    /**
+     * Fetch a url and drain the body, returning its size; non-2xx statuses are errors. The time
+     * from <code>due</code> until the response headers arrive is recorded in
+     * <code>firstByte</code>.
+     */
+    private static long get(String url, LatencyHistogram firstByte, long due)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            int status = conn.getResponseCode();
+            firstByte.recordSince(due);
+            if (status < 200 || status >= 300) {
+                throw new IOException("HTTP " + status);
+            }
+            long size = 0;
+            byte[] buffer = new byte[8192];
+            try (InputStream in = conn.getInputStream()) {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    size += n;
+                }
+            }
+            return size;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static void report(Map<String, Result> results, double seconds) {
+        System.out.println(String.format(Locale.ROOT,
+                "%-10s %8s %7s %8s %9s %9s %9s %9s %9s %9s %9s %9s", "endpoint", "requests",
+                "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                "ttfb p50", "ttfb p99", "MB"));
+        for (Map.Entry<String, Result> e : results.entrySet()) {
+            LatencyHistogram h = e.getValue().latency;
+            System.out.println(String.format(Locale.ROOT,
+                    "%-10s %8d %7d %8.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    e.getKey(), h.count(), e.getValue().errors.sum(), h.count() / seconds,
+                    h.percentile(0.5) / 1e6, h.percentile(0.9) / 1e6, h.percentile(0.99) / 1e6,
+                    h.percentile(0.999) / 1e6, h.max() / 1e6,
+                    e.getValue().firstByte.percentile(0.5) / 1e6,
+                    e.getValue().firstByte.percentile(0.99) / 1e6,
+                    e.getValue().bytes.sum() / 1e6));
+        }
+    }
+
+    /** GC pauses during the run, and the heap and direct memory in use at its end. */
+    private static void reportMemory() {
+        LatencyHistogram gc = Metrics.GC_PAUSE;
+        long direct = 0;
+        for (BufferPoolMXBean pool
+                : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool.getMemoryUsed();
+            }
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "gc pauses %d, p50 %.1f ms, p99 %.1f ms, max %.1f ms, total %.1f ms; "
+                        + "heap used %.1f MB, direct %.1f MB", gc.count(),
+                gc.percentile(0.5) / 1e6, gc.percentile(0.99) / 1e6, gc.max() / 1e6,
+                gc.sum() / 1e6,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1e6,
+                direct / 1e6));
+    }
+}
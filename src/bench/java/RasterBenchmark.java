@@ -0,0 +1,95 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the raster pipeline: the QuadTree query, getMapRaster end to end (query, tile
+ * decode and compositing) and the JPEG encoding of the composited image.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RasterBenchmark {
+
+    /**
+     * overview -> the initial view of map.js, city -> a few blocks, street -> the deepest tiles.
+     */
+    @Param({"overview", "city", "street"})
+    public String view;
+
+    private Map<String, Double> params;
+    private QuadTree tree;
+    private BufferedImage image;
+
+    /** Viewport parameters as map.js sends them, for a 1280x800 window. */
+    static Map<String, Double> viewport(String view) {
+        double ullon = -122.27625;
+        double ullat = 37.88;
+        double width;
+        switch (view) {
+            case "overview":
+                width = 0.05625;
+                break;
+            case "city":
+                width = 0.0125;
+                break;
+            default:
+                width = 0.002;
+                break;
+        }
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", ullon + width);
+        params.put("lrlat", ullat - width * 800 / 1280 * 0.79);
+        params.put("w", 1280.0);
+        params.put("h", 800.0);
+        return params;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MapServer.initialize();
+        params = viewport(view);
+        tree = new QuadTree();
+        image = MapServer.getMapRaster(params, new HashMap<>());
+    }
+
+    @Benchmark
+    public ArrayList<QuadTreeNode> quadTreeRaster() {
+        double resolution = (params.get("lrlon") - params.get("ullon")) / params.get("w");
+        return tree.raster(params.get("ullon"), params.get("lrlon"), params.get("ullat"),
+                params.get("lrlat"), resolution);
+    }
+
+    @Benchmark
+    public BufferedImage getMapRaster() {
+        return MapServer.getMapRaster(params, new HashMap<>());
+    }
+
+    @Benchmark
+    public int writeJpgToStream() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeJpgToStream(image, os);
+        return os.size();
+    }
+}
@@ -0,0 +1,91 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks snapping a point to its nearest graph node and A* between seeded random node
+ * pairs. Each invocation takes the next query from a fixed, seeded set, so every run and every
+ * commit measures the same work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+    private static final long SEED = 61;
+    private static final int QUERIES = 64;
+
+    /** RoadGraph profile the routes are searched under. */
+    @Param({"car", "distance"})
+    public String profile;
+
+    private final List<Map<String, Double>> points = new ArrayList<>();
+    private final List<GraphNode[]> pairs = new ArrayList<>();
+    private int profileIndex;
+    private int nextPoint = 0;
+    private int nextPair = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MapServer.initialize();
+        profileIndex = RoadGraph.profile(profile);
+        Random random = new Random(SEED);
+        for (int i = 0; i < QUERIES; i++) {
+            Map<String, Double> p = new HashMap<>();
+            p.put("start_lon", lerp(random, MapServer.ROOT_ULLON, MapServer.ROOT_LRLON));
+            p.put("start_lat", lerp(random, MapServer.ROOT_LRLAT, MapServer.ROOT_ULLAT));
+            p.put("end_lon", lerp(random, MapServer.ROOT_ULLON, MapServer.ROOT_LRLON));
+            p.put("end_lat", lerp(random, MapServer.ROOT_LRLAT, MapServer.ROOT_ULLAT));
+            points.add(p);
+        }
+        List<GraphNode> nodes =
+                new ArrayList<>(MapServer.getGraphDB().getMaphandler().getNodeMap().values());
+        nodes.sort((a, b) -> a.getID().compareTo(b.getID()));
+        /* Keep only pairs that can be routed, so failures are not what gets measured. */
+        while (pairs.size() < QUERIES) {
+            GraphNode start = nodes.get(random.nextInt(nodes.size()));
+            GraphNode end = nodes.get(random.nextInt(nodes.size()));
+            if (!MapServer.shortestPath(MapServer.getGraphDB(), start, end,
+                    profileIndex).isEmpty()) {
+                pairs.add(new GraphNode[]{start, end});
+            }
+        }
+    }
+
+    private static double lerp(Random random, double lo, double hi) {
+        return lo + random.nextDouble() * (hi - lo);
+    }
+
+    @Benchmark
+    public GraphNode[] nearestNode() {
+        nextPoint = (nextPoint + 1) % points.size();
+        return MapServer.closestNodes(MapServer.getGraphDB(), points.get(nextPoint),
+                profileIndex);
+    }
+
+    @Benchmark
+    public List<Long> shortestPath() {
+        nextPair = (nextPair + 1) % pairs.size();
+        GraphNode[] pair = pairs.get(nextPair);
+        return MapServer.shortestPath(MapServer.getGraphDB(), pair[0], pair[1], profileIndex);
+    }
+}
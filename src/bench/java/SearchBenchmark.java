@@ -0,0 +1,71 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Trie behind /search: autocomplete prefixes of 2 to 5 characters, and full
+ * name lookups, both drawn from the loaded location names with a fixed seed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final long SEED = 61;
+    private static final int QUERIES = 256;
+
+    private Trie trie;
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private int nextPrefix = 0;
+    private int nextName = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MapServer.initialize();
+        trie = MapServer.getGraphDB().getMaphandler().getPointsOfInterest();
+        List<String> all = new ArrayList<>();
+        for (GraphNode n : MapServer.getGraphDB().getMaphandler().getNamedNodes()) {
+            if (n.getCleanName().length() >= 5) {
+                all.add(n.getName());
+            }
+        }
+        all = new ArrayList<>(new HashSet<>(all));
+        all.sort(null);
+        Random random = new Random(SEED);
+        for (int i = 0; i < QUERIES; i++) {
+            String name = all.get(random.nextInt(all.size()));
+            names.add(name);
+            prefixes.add(GraphDB.cleanString(name).substring(0, 2 + random.nextInt(4)));
+        }
+    }
+
+    @Benchmark
+    public List<String> lookupPrefix() {
+        nextPrefix = (nextPrefix + 1) % prefixes.size();
+        return trie.lookupPrefix(prefixes.get(nextPrefix));
+    }
+
+    @Benchmark
+    public HashSet<GraphNode> lookup() {
+        nextName = (nextName + 1) % names.size();
+        return trie.lookup(names.get(nextName));
+    }
+}
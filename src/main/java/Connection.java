@@ -9,17 +9,43 @@ public class Connection implements Comparable<Double> {
     private Long from;
     private Long to;
     private Double distance;
+    /** Highway tag of the way this connection is part of, or null if unknown. */
+    private String highway;
+    /** Posted speed limit of the way in km/h, or 0 if none is tagged. */
+    private float maxSpeed;
+    /** Whether this connection runs against the way's one-way direction. */
+    private boolean againstOneway;
 
     public Connection(Long from, Long to, Double distance) {
+        this(from, to, distance, null, 0, false);
+    }
+
+    public Connection(Long from, Long to, Double distance, String highway, float maxSpeed,
+                      boolean againstOneway) {
         this.from = from;
         this.to = to;
         this.distance = distance;
+        this.highway = highway;
+        this.maxSpeed = maxSpeed;
+        this.againstOneway = againstOneway;
     }
 
     public Double getDistance() {
         return distance;
     }
 
+    public String getHighway() {
+        return highway;
+    }
+
+    public float getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    public boolean isAgainstOneway() {
+        return againstOneway;
+    }
+
     public Long to() {
         return to;
     }
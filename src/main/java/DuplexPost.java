@@ -0,0 +1,309 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * An HTTP/1.1 POST whose body is sent a chunk at a time while another thread reads its
+ * response into a spool file, for a server that answers as it reads, as MapServer's /match
+ * does. HttpURLConnection reads no response until the whole body is sent, so such a server,
+ * once its answer has filled the socket buffers, stops reading a body that then can no longer
+ * be sent. The spool holds the response on disk until it is read, however far behind the
+ * reader falls, and is deleted on close.
+ */
+public class DuplexPost implements Closeable {
+
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    private final Socket socket;
+    private final File spool;
+    private final OutputStream body;
+    private final InputStream response;
+    private final CompletableFuture<Integer> status = new CompletableFuture<>();
+    /** Bytes of the response body spooled so far. */
+    private long spooled;
+    /** Whether the response has been read to its end, or failed with failure. */
+    private boolean done;
+    private IOException failure;
+
+    /**
+     * Connect to <code>url</code> and send the request's head; its response is read by a task
+     * run on <code>drains</code>.
+     */
+    public DuplexPost(URL url, int connectTimeoutMs, int readTimeoutMs, Executor drains)
+            throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        File file = File.createTempFile("response", ".spool");
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            s.setSoTimeout(readTimeoutMs);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), BUFFER_BYTES);
+            String target = url.getFile().isEmpty() ? "/" : url.getFile();
+            out.write(("POST " + target + " HTTP/1.1\r\nHost: " + host + ":" + port
+                    + "\r\nContent-Type: text/csv; charset=UTF-8"
+                    + "\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            body = new ChunkedOutputStream(out);
+            response = new SpoolInputStream(new FileInputStream(file));
+        } catch (IOException e) {
+            s.close();
+            file.delete();
+            throw e;
+        }
+        socket = s;
+        spool = file;
+        drains.execute(this::drain);
+    }
+
+    /** The request body, sent in a chunk each time it is written to; closing it ends it. */
+    public OutputStream getBody() {
+        return body;
+    }
+
+    /**
+     * The status code of the response, waiting for it to start.
+     * @throws IOException If the response could not be read.
+     */
+    public int getStatus() throws IOException {
+        try {
+            return status.get();
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * The response body, as it is spooled: reads wait for more of it, and fail if the
+     * response could not be read to its end.
+     */
+    public InputStream getResponse() {
+        return response;
+    }
+
+    /** Drop the connection, whether or not its exchange is complete, and the spool. */
+    @Override
+    public void close() throws IOException {
+        try {
+            socket.close();
+            response.close();
+        } finally {
+            spool.delete();
+        }
+    }
+
+    /** Read the response's head, then spool its body until it ends. */
+    private void drain() {
+        IOException failed = null;
+        try (InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES);
+             OutputStream out = new FileOutputStream(spool)) {
+            int code;
+            boolean chunked = false;
+            long length = Long.MAX_VALUE;
+            do {
+                String[] statusLine = readLine(in).split(" ");
+                code = parseNumber(statusLine.length < 2 ? "" : statusLine[1], 10);
+                for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                    int colon = header.indexOf(':');
+                    String name = colon < 0 ? header : header.substring(0, colon).trim();
+                    String value = colon < 0 ? "" : header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = value.equalsIgnoreCase("chunked");
+                    } else if (name.equalsIgnoreCase("Content-Length")) {
+                        length = parseNumber(value, 10);
+                    }
+                }
+            } while (code == 100);
+            status.complete(code);
+            InputStream entity = chunked ? new ChunkedInputStream(in) : in;
+            byte[] buffer = new byte[BUFFER_BYTES];
+            while (length > 0) {
+                int n = entity.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                length -= n;
+                synchronized (this) {
+                    spooled += n;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            failed = e;
+        }
+        status.completeExceptionally(failed != null ? failed
+                : new IOException("The response ended before its head."));
+        synchronized (this) {
+            failure = failed;
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /** A line of the response's head, without its line break. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new IOException("The response ended in its head.");
+            }
+            line.write(b);
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static int parseNumber(String value, int radix) throws IOException {
+        try {
+            return Integer.parseInt(value, radix);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed response: " + value);
+        }
+    }
+
+    /** Reads the spool, waiting at its end until more is spooled or the response ends. */
+    private final class SpoolInputStream extends InputStream {
+        private final InputStream file;
+        private long position;
+
+        SpoolInputStream(InputStream file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available;
+            synchronized (DuplexPost.this) {
+                while (position >= spooled && !done) {
+                    try {
+                        DuplexPost.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                available = spooled - position;
+                if (available == 0) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return -1;
+                }
+            }
+            int n = file.read(b, off, (int) Math.min(len, available));
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /** Writes each write as a chunk of the body, and its last chunk on close. */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        /** End the body, leaving the connection open for the response. */
+        @Override
+        public void close() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+
+    /** Reads the data of a chunked body, and ends after its last chunk. */
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        /** Bytes left in the current chunk, or -1 after the last one. */
+        private long left;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left == 0) {
+                String size = readLine(in);
+                int extension = size.indexOf(';');
+                left = parseNumber((extension < 0 ? size : size.substring(0, extension)).trim(),
+                        16);
+                if (left == 0) {
+                    for (String trailer = readLine(in); !trailer.isEmpty();
+                         trailer = readLine(in)) {
+                        continue;
+                    }
+                    left = -1;
+                }
+            }
+            if (left < 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n < 0) {
+                throw new IOException("The response ended in a chunk.");
+            }
+            left -= n;
+            if (left == 0) {
+                readLine(in);
+            }
+            return n;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import org.xml.sax.SAXException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -13,10 +14,18 @@ import java.io.InputStream;
 public class GraphDB {
 
     private MapDBHandler maphandler;
+    /** Spatial index over the named nodes, for proximity-ranked search. */
+    private PointIndex poiIndex;
+    /** Word index over the named nodes, for matching words anywhere in a name. */
+    private TokenIndex tokenIndex;
+    /** Searches over the road graph, held in primitive arrays. */
+    private Router router;
+    /** Spatial index over the road graph's nodes, measuring ground distance. */
+    private PointIndex roadIndex;
 
     /**
      * Example constructor shows how to create and start an XML parser.
-     * @param dbPath Path to the XML file to be parsed.
+     * @param dbPath Path to the XML file to be parsed, on disk or else on the classpath.
      */
     public GraphDB(String dbPath) {
         try {
@@ -24,10 +33,25 @@ public class GraphDB {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
             maphandler = new MapDBHandler(this);
-            InputStream in = getClass().getClassLoader().getResourceAsStream(dbPath);
-            saxParser.parse(in, maphandler);
+            File dbFile = new File(dbPath);
+            try (InputStream in = dbFile.isFile() ? new FileInputStream(dbFile)
+                    : getClass().getClassLoader().getResourceAsStream(dbPath)) {
+                saxParser.parse(in, maphandler);
+            }
 //            saxParser.parse(inputFile, maphandler);
             maphandler.removeDisconnects();
+            tokenIndex = new TokenIndex(maphandler.getNamedNodes());
+            RoadGraph roads = new RoadGraph(maphandler.getNodeMap().values());
+            /* Drop road fragments cut off from the main network; routes could never reach
+             * them, and snapping to one would leave nowhere to go. */
+            if (roads.routableSize(RoadGraph.DISTANCE) < roads.size()) {
+                RoadGraph all = roads;
+                maphandler.retainNodes(n -> all.isRoutable(RoadGraph.DISTANCE, n.getIndex()));
+                roads = new RoadGraph(maphandler.getNodeMap().values());
+            }
+            router = new Router(roads);
+            roadIndex = new PointIndex(maphandler.getNodeMap().values(), roads.lonScale());
+            poiIndex = new PointIndex(maphandler.getNamedNodes(), roads.lonScale());
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
@@ -38,6 +62,22 @@ public class GraphDB {
         return maphandler;
     }
 
+    public PointIndex getPoiIndex() {
+        return poiIndex;
+    }
+
+    public TokenIndex getTokenIndex() {
+        return tokenIndex;
+    }
+
+    public Router getRouter() {
+        return router;
+    }
+
+    public PointIndex getRoadIndex() {
+        return roadIndex;
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -10,10 +10,12 @@ public class GraphNode {
 
     private double[] loc = new double[2];
     private String name;
+    private String cleanName;
     private Attributes attributes;
     private HashSet<Connection> connections = new HashSet<>();
 
     private Double shortest;
+    private int index = -1;
 
     public GraphNode(Attributes attributes) {
         this.attributes = attributes;
@@ -44,18 +46,47 @@ public class GraphNode {
         this.connections.add(new Connection(this.getID(), x.getID(), distance));
     }
 
-    public Double getDistanceTo(Double lon, Double lat) {
-        return Math.sqrt(Math.pow((this.getLoc()[0] - lon), 2)
-                + Math.pow((this.getLoc()[1] - lat), 2));
+    /**
+     * Connect this node to <code>x</code> along a way with the given highway tag and speed
+     * limit (km/h, 0 if none), recording whether that runs against the way's one-way direction.
+     */
+    public void addConnection(GraphNode x, String highway, float maxSpeed, boolean againstOneway) {
+        Double distance = getDistanceTo(x.getLoc()[0], x.getLoc()[1]);
+        this.connections.add(new Connection(this.getID(), x.getID(), distance, highway, maxSpeed,
+                againstOneway));
+    }
+
+    /** Index of this node in the graph's RoadGraph, or -1 if it is not part of it. */
+    public int getIndex() {
+        return index;
+    }
 
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Euclidean distance in lon/lat degrees, for ranking nearby points. Routing measures
+     * distance in metres on RoadGraph's projection instead.
+     */
+    public double getDistanceTo(double lon, double lat) {
+        double dLon = loc[0] - lon;
+        double dLat = loc[1] - lat;
+        return Math.sqrt(dLon * dLon + dLat * dLat);
     }
 
     public void setName(String s) {
         name = s;
+        cleanName = GraphDB.cleanString(s);
     }
 
     public String getName() {
         return name;
     }
 
+    /** The name in the cleaned form used for search matching, or null if unnamed. */
+    public String getCleanName() {
+        return cleanName;
+    }
+
 }
@@ -0,0 +1,267 @@
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The part of a RoadGraph reachable from one node within a weight limit, as found by
+ * Router.reachable, and its outline. The outline is traced on a grid of square cells laid over
+ * the reached nodes and the reached stretches of their edges: a cell is inside if anything
+ * reached falls in it, or if it is enclosed by such cells. Each 4-connected group of inside
+ * cells becomes one polygon, wound counter-clockwise, with its straight runs of cell
+ * edges merged.
+ */
+public class Isochrone {
+
+    /** The grid is at most this many cells across the reached area, so tracing stays cheap. */
+    private static final int MAX_CELLS = 128;
+    /** Cells are no smaller than this, in metres, so small areas do not look like bare roads. */
+    private static final double MIN_CELL_METRES = 25;
+    /** Steps along the direction a ring is heading: east, north, west and south. */
+    private static final int[] STEP_X = {1, 0, -1, 0};
+    private static final int[] STEP_Y = {0, 1, 0, -1};
+
+    private final int reached;
+    private final double cellMetres;
+    /** Each ring as interleaved longitude and latitude, without repeating its first corner. */
+    private final List<double[]> rings = new ArrayList<>();
+
+    /**
+     * @param graph The graph searched.
+     * @param nodes The reached nodes.
+     * @param edges The edges leaving the reached nodes.
+     * @param reach For each edge, the fraction of it reached from its source, between 0 and 1.
+     */
+    Isochrone(RoadGraph graph, int[] nodes, int[] edges, float[] reach) {
+        reached = nodes.length;
+        if (reached == 0) {
+            cellMetres = MIN_CELL_METRES;
+            return;
+        }
+        double loX = Double.MAX_VALUE, loY = Double.MAX_VALUE;
+        double hiX = -Double.MAX_VALUE, hiY = -Double.MAX_VALUE;
+        for (int v : nodes) {
+            loX = Math.min(loX, graph.x(v));
+            hiX = Math.max(hiX, graph.x(v));
+            loY = Math.min(loY, graph.y(v));
+            hiY = Math.max(hiY, graph.y(v));
+        }
+        /* Edges reached part way may end outside the nodes' bounds. */
+        for (int i = 0; i < edges.length; i++) {
+            int u = graph.source(edges[i]);
+            int w = graph.target(edges[i]);
+            double x = graph.x(u) + reach[i] * (graph.x(w) - graph.x(u));
+            double y = graph.y(u) + reach[i] * (graph.y(w) - graph.y(u));
+            loX = Math.min(loX, x);
+            hiX = Math.max(hiX, x);
+            loY = Math.min(loY, y);
+            hiY = Math.max(hiY, y);
+        }
+        cellMetres = Math.max(MIN_CELL_METRES, Math.max(hiX - loX, hiY - loY) / MAX_CELLS);
+        /* A margin of one empty cell on every side, so every ring closes inside the grid. */
+        double originX = loX - cellMetres;
+        double originY = loY - cellMetres;
+        int columns = (int) ((hiX - loX) / cellMetres) + 3;
+        int rows = (int) ((hiY - loY) / cellMetres) + 3;
+
+        boolean[] inside = new boolean[columns * rows];
+        for (int v : nodes) {
+            inside[cell(graph.x(v), graph.y(v), originX, originY, columns)] = true;
+        }
+        /* Sample each reached stretch at half a cell, so it marks every cell it crosses. */
+        for (int i = 0; i < edges.length; i++) {
+            int u = graph.source(edges[i]);
+            int w = graph.target(edges[i]);
+            double dx = reach[i] * (graph.x(w) - graph.x(u));
+            double dy = reach[i] * (graph.y(w) - graph.y(u));
+            int steps = (int) Math.ceil(2 * Math.sqrt(dx * dx + dy * dy) / cellMetres);
+            for (int s = 1; s <= steps; s++) {
+                double t = (double) s / steps;
+                inside[cell(graph.x(u) + t * dx, graph.y(u) + t * dy, originX, originY,
+                        columns)] = true;
+            }
+        }
+        fillHoles(inside, columns, rows);
+        trace(graph, inside, columns, rows, originX, originY);
+    }
+
+    /** The number of nodes reached. */
+    public int size() {
+        return reached;
+    }
+
+    /** The side of the grid's cells, in metres; the outline is accurate to about this. */
+    public double getCellMetres() {
+        return cellMetres;
+    }
+
+    /**
+     * The outline as GeoJSON MultiPolygon coordinates: one polygon per ring, each a single
+     * closed ring of {lon, lat} positions.
+     */
+    public List<List<List<double[]>>> getCoordinates() {
+        List<List<List<double[]>>> polygons = new ArrayList<>();
+        for (double[] ring : rings) {
+            List<double[]> positions = new ArrayList<>();
+            for (int i = 0; i <= ring.length; i += 2) {
+                int at = i % ring.length;
+                positions.add(new double[]{ring[at], ring[at + 1]});
+            }
+            List<List<double[]>> polygon = new ArrayList<>();
+            polygon.add(positions);
+            polygons.add(polygon);
+        }
+        return polygons;
+    }
+
+    /**
+     * Draw the outline onto <code>g</code>, an image of <code>width</code> by
+     * <code>height</code> pixels whose corners are at the given longitudes and latitudes,
+     * filled with ISOCHRONE_FILL_COLOR and edged like a route.
+     * @return Whether any of the outline was visible, and so drawn.
+     */
+    public boolean draw(Graphics2D g, int width, int height, double ulLon, double ulLat,
+                        double lrLon, double lrLat) {
+        double lonPerPx = Math.abs(lrLon - ulLon) / width;
+        double latPerPx = Math.abs(lrLat - ulLat) / height;
+        Path2D.Double outline = new Path2D.Double(Path2D.WIND_NON_ZERO);
+        for (double[] ring : rings) {
+            outline.moveTo((ring[0] - ulLon) / lonPerPx, (ulLat - ring[1]) / latPerPx);
+            for (int i = 2; i < ring.length; i += 2) {
+                outline.lineTo((ring[i] - ulLon) / lonPerPx, (ulLat - ring[i + 1]) / latPerPx);
+            }
+            outline.closePath();
+        }
+        if (rings.isEmpty() || !outline.intersects(0, 0, width, height)) {
+            return false;
+        }
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.setColor(MapServer.ISOCHRONE_FILL_COLOR);
+        g.fill(outline);
+        g.setStroke(new BasicStroke(MapServer.ISOCHRONE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g.draw(outline);
+        return true;
+    }
+
+    /** The grid cell holding the projected point (x, y). */
+    private int cell(double x, double y, double originX, double originY, int columns) {
+        return (int) ((y - originY) / cellMetres) * columns + (int) ((x - originX) / cellMetres);
+    }
+
+    /**
+     * Mark as inside every cell not connected to the grid's border through outside cells.
+     * Outside cells connect diagonally too, the counterpart of inside cells connecting only
+     * through their sides, so that what is left outside touches no ring from within.
+     */
+    private static void fillHoles(boolean[] inside, int columns, int rows) {
+        boolean[] outside = new boolean[inside.length];
+        int[] stack = new int[inside.length];
+        int top = 0;
+        /* The margin cell at the origin is always outside. */
+        outside[0] = true;
+        stack[top++] = 0;
+        while (top > 0) {
+            int c = stack[--top];
+            int column = c % columns;
+            int row = c / columns;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int x = column + dx;
+                    int y = row + dy;
+                    if (x < 0 || y < 0 || x >= columns || y >= rows) {
+                        continue;
+                    }
+                    int next = y * columns + x;
+                    if (!inside[next] && !outside[next]) {
+                        outside[next] = true;
+                        stack[top++] = next;
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < inside.length; c++) {
+            inside[c] = !outside[c];
+        }
+    }
+
+    /**
+     * Trace the boundaries between inside and outside cells into rings. Each boundary edge
+     * of an inside cell is directed to keep the cell on its left. Where two inside cells meet
+     * only at a corner, a ring turns left, keeping to the cell it came along, so the cells'
+     * rings stay separate. Corners where a ring goes straight on are left out.
+     */
+    private void trace(RoadGraph graph, boolean[] inside, int columns, int rows,
+                       double originX, double originY) {
+        int corners = columns + 1;
+        /* edge[corner * 4 + direction]: whether a boundary edge leaves the corner that way. */
+        boolean[] edge = new boolean[corners * (rows + 1) * 4];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (!inside[row * columns + column]) {
+                    continue;
+                }
+                int corner = row * corners + column;
+                if (row == 0 || !inside[(row - 1) * columns + column]) {
+                    edge[corner * 4] = true;
+                }
+                if (column == columns - 1 || !inside[row * columns + column + 1]) {
+                    edge[(corner + 1) * 4 + 1] = true;
+                }
+                if (row == rows - 1 || !inside[(row + 1) * columns + column]) {
+                    edge[(corner + corners + 1) * 4 + 2] = true;
+                }
+                if (column == 0 || !inside[row * columns + column - 1]) {
+                    edge[(corner + corners) * 4 + 3] = true;
+                }
+            }
+        }
+        boolean[] used = new boolean[edge.length];
+        double[] ring = new double[64];
+        for (int start = 0; start < edge.length; start++) {
+            if (!edge[start] || used[start]) {
+                continue;
+            }
+            int length = 0;
+            int e = start;
+            do {
+                used[e] = true;
+                int corner = e / 4;
+                int direction = e % 4;
+                int next = corner + STEP_X[direction] + STEP_Y[direction] * corners;
+                int turn = nextEdge(edge, next, direction);
+                if (turn % 4 != direction) {
+                    /* A corner of the ring, where it turns. */
+                    if (length + 2 > ring.length) {
+                        ring = Arrays.copyOf(ring, 2 * ring.length);
+                    }
+                    double x = originX + (next % corners) * cellMetres;
+                    double y = originY + (next / corners) * cellMetres;
+                    ring[length++] = graph.unprojectX(x);
+                    ring[length++] = graph.unprojectY(y);
+                }
+                e = turn;
+            } while (e != start);
+            rings.add(Arrays.copyOf(ring, length));
+        }
+    }
+
+    /**
+     * The boundary edge a ring arriving at <code>corner</code> heading
+     * <code>direction</code> leaves by: a left turn if there is one, else straight on, else
+     * a right turn.
+     */
+    private static int nextEdge(boolean[] edge, int corner, int direction) {
+        for (int turn : new int[]{1, 0, 3}) {
+            int e = corner * 4 + (direction + turn) % 4;
+            if (edge[e]) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("Boundary ring does not close.");
+    }
+}
@@ -2,6 +2,7 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 import java.util.*;
+import java.util.function.Predicate;
 
 
 /**
@@ -32,9 +33,12 @@ public class MapDBHandler extends DefaultHandler {
 
     private ArrayList<String> wayNodes = new ArrayList<>();
     private boolean containsHighway = false;
+    /** Tags of the way being parsed that routing costs depend on; null if absent. */
+    private String wayHighway, wayOneway, wayJunction, wayMaxSpeed;
 
     private HashMap<Long, GraphNode> nodeMap = new HashMap<Long, GraphNode>();
     private Trie pointsOfInterest = new Trie();
+    private ArrayList<GraphNode> namedNodes = new ArrayList<>();
 
 
     public MapDBHandler(GraphDB g) {
@@ -49,6 +53,11 @@ public class MapDBHandler extends DefaultHandler {
         return pointsOfInterest;
     }
 
+    /** Every node that carries a name tag, whether or not it is part of the road graph. */
+    public ArrayList<GraphNode> getNamedNodes() {
+        return namedNodes;
+    }
+
     /**
      * Called at the beginning of an element. Typically, you will want to handle each element in
      * here, and you may want to track the parent element.
@@ -87,6 +96,13 @@ public class MapDBHandler extends DefaultHandler {
             String v = attributes.getValue("v");
             if (k.equals("highway")) {
                 containsHighway = true;
+                wayHighway = v;
+            } else if (k.equals("oneway")) {
+                wayOneway = v;
+            } else if (k.equals("junction")) {
+                wayJunction = v;
+            } else if (k.equals("maxspeed")) {
+                wayMaxSpeed = v;
             }
             if (k.equals("highway") && !ALLOWED_HIGHWAY_TYPES.contains(v)) {
                 wayNodes = new ArrayList<>();
@@ -104,6 +120,7 @@ public class MapDBHandler extends DefaultHandler {
             //add to Trie as well; add names
             pointsOfInterest.addLocation(attributes.getValue("v"),
                     nodeMap.get(Long.valueOf(currId)));
+            namedNodes.add(nodeMap.get(Long.valueOf(currId)));
         }
     }
 
@@ -125,28 +142,68 @@ public class MapDBHandler extends DefaultHandler {
             if (!containsHighway) {
                 wayNodes = new ArrayList<>();
             }
+            int oneway = onewayDirection();
+            float maxSpeed = parseMaxSpeed(wayMaxSpeed);
+            /* Every way is connected both ways; those against a one-way are flagged as such. */
             for (int i = 0; i < wayNodes.size() && wayNodes.size() != 1; i++) {
-                Long id = Long.valueOf(wayNodes.get(i));
-                //nodeNames.add(nodeMap.get(id).attributes().g)
-                if (i == 0) {
-                    //nodeMap.get(id).getConnections().add(new Connection(id, wayNodes.get(i + 1)));
-                    nodeMap.get(id).addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i + 1))));
-                } else if (i == wayNodes.size() - 1) {
-                    //nodeMap.get(id).getConnections().add(new Connection(id, wayNodes.get(i - 1)));
-                    nodeMap.get(id).addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i - 1))));
-                } else {
-                    //nodeMap.get(id).getConnections().add(new Connection(id, wayNodes.get(i + 1)));
-                    nodeMap.get(id).addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i + 1))));
-                    //nodeMap.get(id).getConnections().add(new Connection(id, wayNodes.get(i - 1)));
-                    nodeMap.get(id).addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i - 1))));
+                GraphNode curr = nodeMap.get(Long.valueOf(wayNodes.get(i)));
+                if (i < wayNodes.size() - 1) {
+                    curr.addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i + 1))), wayHighway,
+                            maxSpeed, oneway < 0);
+                }
+                if (i > 0) {
+                    curr.addConnection(nodeMap.get(Long.valueOf(wayNodes.get(i - 1))), wayHighway,
+                            maxSpeed, oneway > 0);
                 }
             }
             wayNodes = new ArrayList<>(); //resetting wayNodes for each way
             containsHighway = false; //resetting containsHighway
+            wayHighway = wayOneway = wayJunction = wayMaxSpeed = null;
             //System.out.println("Finishing a way...");
         }
     }
 
+    /**
+     * The one-way direction of the way being parsed: 1 if it may only be travelled in the order
+     * of its nodes, -1 if only in reverse, 0 if both. Motorways and roundabouts are one-way
+     * unless tagged otherwise.
+     */
+    private int onewayDirection() {
+        if (wayOneway == null) {
+            boolean implied = "motorway".equals(wayHighway) || "roundabout".equals(wayJunction);
+            return implied ? 1 : 0;
+        }
+        switch (wayOneway) {
+            case "yes": case "true": case "1":
+                return 1;
+            case "-1": case "reverse":
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Parse an OSM maxspeed value, such as "25 mph" or "50", into km/h; 0 if it is missing or
+     * not a number.
+     */
+    static float parseMaxSpeed(String maxSpeed) {
+        if (maxSpeed == null) {
+            return 0;
+        }
+        String value = maxSpeed.trim();
+        float scale = 1;
+        if (value.endsWith("mph")) {
+            value = value.substring(0, value.length() - 3).trim();
+            scale = 1.609344f;
+        }
+        try {
+            return Math.max(0, Float.parseFloat(value) * scale);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public int getConnectedSize() {
         int count = 0;
         for (Long id : nodeMap.keySet()) {
@@ -157,6 +214,21 @@ public class MapDBHandler extends DefaultHandler {
         return count;
     }
 
+    /**
+     * Remove the nodes that <code>keep</code> rejects from the graph. They are no longer part
+     * of any RoadGraph either.
+     */
+    public void retainNodes(Predicate<GraphNode> keep) {
+        Iterator<Map.Entry<Long, GraphNode>> iter = nodeMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            GraphNode node = iter.next().getValue();
+            if (!keep.test(node)) {
+                node.setIndex(-1);
+                iter.remove();
+            }
+        }
+    }
+
     public void removeDisconnects() {
         Iterator<Map.Entry<Long, GraphNode>> iter = nodeMap.entrySet().iterator();
         while (iter.hasNext()) {
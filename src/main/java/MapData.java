@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * One version of the data the server answers from: the graph, where its tiles are read from,
+ * and every cache derived from the two. A version is fully loaded, and its caches warmed, before
+ * MapServer swaps it in; requests read the current version once and use it throughout, so a
+ * request in flight during a swap finishes against the version it started on. Caches belong to
+ * their version and are dropped with it, so no entry can outlive the data it was computed from.
+ */
+public class MapData {
+
+    private final long version;
+    private final GraphDB graph;
+    /** Tile directory or classpath prefix, ending in a slash. */
+    private final String tileRoot;
+    /** Serialized autocomplete and full-name search responses, keyed by cleaned term. */
+    private final SearchCache prefixCache;
+    private final SearchCache locationCache;
+    /** Candidates of proximity-ranked searches, keyed as by MapServer.getCandidates. */
+    private final LruCache<String, List<GraphNode>> rankedCache;
+    /** Routes recently asked for, and their overlays rendered per tile. */
+    private final RouteTiles routeTiles;
+    /** Tiles synthesized below the deepest tiles on disk. */
+    private final OverzoomTiles overzoomTiles;
+    /** Decoded tiles, off the heap. */
+    private final TileSlabCache tileCache;
+
+    public MapData(long version, GraphDB graph, String tileRoot, SearchCache prefixCache,
+                   SearchCache locationCache, LruCache<String, List<GraphNode>> rankedCache,
+                   RouteTiles routeTiles,
+                   OverzoomTiles overzoomTiles, TileSlabCache tileCache) {
+        this.version = version;
+        this.graph = graph;
+        this.tileRoot = tileRoot.endsWith("/") ? tileRoot : tileRoot + "/";
+        this.prefixCache = prefixCache;
+        this.locationCache = locationCache;
+        this.rankedCache = rankedCache;
+        this.routeTiles = routeTiles;
+        this.overzoomTiles = overzoomTiles;
+        this.tileCache = tileCache;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public GraphDB getGraph() {
+        return graph;
+    }
+
+    public SearchCache getPrefixCache() {
+        return prefixCache;
+    }
+
+    public SearchCache getLocationCache() {
+        return locationCache;
+    }
+
+    public LruCache<String, List<GraphNode>> getRankedCache() {
+        return rankedCache;
+    }
+
+    public RouteTiles getRouteTiles() {
+        return routeTiles;
+    }
+
+    public OverzoomTiles getOverzoomTiles() {
+        return overzoomTiles;
+    }
+
+    public TileSlabCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Open the PNG of the tile named <code>fileName</code>, from the tile directory if the tile
+     * root is one on disk, or else from the classpath; null if there is no such tile.
+     */
+    public InputStream openTile(String fileName) {
+        String path = tileRoot + fileName + ".png";
+        File file = new File(path);
+        if (file.isFile()) {
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+        return MapData.class.getClassLoader().getResourceAsStream(path);
+    }
+}
@@ -0,0 +1,515 @@
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Matches GPS traces to the roads they were recorded on, with the hidden Markov model of
+ * Newson and Krumm. The hidden states of a fix are its candidates: the closest points of the
+ * road edges near it, found through the graph's road index. A candidate is as likely as its
+ * distance from the fix is under Gaussian GPS noise; a step from one candidate to the next is
+ * as likely as the route between them is close in length to the straight line between their
+ * fixes. Viterbi picks the likeliest sequence. Where no route links one fix's candidates to the
+ * next's, the trace is split, and each piece matched on its own.
+ * Each trace costs one bounded Dijkstra per distinct edge end among a fix's candidates, shared
+ * by every candidate leaving from that node and every target of the next fix. Fixes within
+ * two standard deviations of the previous one add nothing and are matched to its edge.
+ */
+public class MapMatcher {
+
+    /** Standard deviation of GPS noise, in metres. */
+    private static final double SIGMA_METRES = 4.07;
+    /**
+     * Scale of the exponential distribution of the difference between the route from one match
+     * to the next and the straight line between their fixes, in metres.
+     */
+    private static final double BETA_METRES = 3;
+    /** Fixes are only matched to edges within this distance. */
+    private static final double SEARCH_RADIUS_METRES = 50;
+    /** The closest this many candidates of a fix are kept. */
+    private static final int MAX_CANDIDATES = 8;
+    /** Routes between matches are searched up to this many times the distance between fixes. */
+    private static final double MAX_ROUTE_FACTOR = 5;
+    /** How many traces per pool thread matchAll keeps in flight while streaming. */
+    private static final int TRACES_IN_FLIGHT_PER_THREAD = 4;
+    private static final Gson GSON = new Gson();
+
+    private final GraphDB graph;
+    private final RoadGraph roads;
+    private final Router router;
+    private final int profile;
+    /** An edge within the search radius has an end within this distance. */
+    private final double nodeRadius;
+
+    /**
+     * @param profile The RoadGraph profile whose roads the traces are matched to, and whose
+     *                one-way restrictions the routes between matches follow.
+     */
+    public MapMatcher(GraphDB graph, int profile) {
+        this.graph = graph;
+        this.router = graph.getRouter();
+        this.roads = router.getGraph();
+        this.profile = profile;
+        this.nodeRadius = SEARCH_RADIUS_METRES + roads.maxLength() / 2;
+    }
+
+    /**
+     * A fix's place on the road: a point on an edge, and how far it is from the fix.
+     */
+    public static final class Match {
+        private final long from;
+        private final long to;
+        private final double lon;
+        private final double lat;
+        private final double error;
+
+        Match(long from, long to, double lon, double lat, double error) {
+            this.from = from;
+            this.to = to;
+            this.lon = lon;
+            this.lat = lat;
+            this.error = error;
+        }
+
+        /** The id of the node the matched edge leaves. */
+        public long getFrom() {
+            return from;
+        }
+
+        /** The id of the node the matched edge enters. */
+        public long getTo() {
+            return to;
+        }
+
+        public double getLon() {
+            return lon;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        /** The distance from the fix to its match, in metres. */
+        public double getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Match the trace of fixes at (lons[i], lats[i]), in the order they were recorded.
+     * @return Each fix's match, or null for a fix with no road within SEARCH_RADIUS_METRES.
+     */
+    public Match[] match(double[] lons, double[] lats) {
+        long start = System.nanoTime();
+        int n = lons.length;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = roads.projectX(lons[i]);
+            ys[i] = roads.projectY(lats[i]);
+        }
+        /* The layer each fix is matched by: its own, or the one of the fix it stays close to. */
+        int[] layerOf = new int[n];
+        Arrays.fill(layerOf, -1);
+        List<Layer> layers = new ArrayList<>();
+        /* The layers of the current piece of the trace, from its first. */
+        int pieceStart = 0;
+        Transitions transitions = new Transitions();
+        for (int i = 0; i < n; i++) {
+            Layer last = layers.isEmpty() ? null : layers.get(layers.size() - 1);
+            if (last != null && Math.hypot(xs[i] - xs[last.fix], ys[i] - ys[last.fix])
+                    < 2 * SIGMA_METRES) {
+                layerOf[i] = layers.size() - 1;
+                continue;
+            }
+            Layer layer = candidates(i, lons[i], lats[i], xs[i], ys[i]);
+            if (layer.count == 0) {
+                continue;
+            }
+            boolean linked = last != null && transitions.step(last, layer,
+                    Math.hypot(xs[i] - xs[last.fix], ys[i] - ys[last.fix]));
+            if (!linked) {
+                /* The start of the trace, or of a piece no route leads into. */
+                if (last != null) {
+                    decode(layers, pieceStart);
+                }
+                pieceStart = layers.size();
+                System.arraycopy(layer.emission, 0, layer.score, 0, layer.count);
+            }
+            layerOf[i] = layers.size();
+            layers.add(layer);
+        }
+        if (!layers.isEmpty()) {
+            decode(layers, pieceStart);
+        }
+
+        Match[] matches = new Match[n];
+        for (int i = 0; i < n; i++) {
+            if (layerOf[i] >= 0) {
+                Layer layer = layers.get(layerOf[i]);
+                matches[i] = toMatch(layer.edge[layer.chosen], xs[i], ys[i]);
+            }
+        }
+        Metrics.MAP_MATCH.recordSince(start);
+        return matches;
+    }
+
+    /**
+     * Match the traces read from <code>in</code> on <code>pool</code>, writing each trace's
+     * matches to <code>out</code> as a line of Json, in the order the traces were read. Only a
+     * bounded window of traces is held at once, so inputs of any size stream through.<br>
+     * Each input line is a fix: the trace's id, the longitude and the latitude, separated by
+     * commas; further columns are ignored. The consecutive lines of a trace id form the trace. A
+     * first line whose longitude is not a number is taken for a header and skipped.<br>
+     * Each output line is {"trace": id, "matches": [...]}, holding a Json object per fix with the
+     * fields of its Match (from, to, lon, lat and error), or null if it was not matched.
+     * @throws IllegalArgumentException If a line is malformed.
+     */
+    public void matchAll(BufferedReader in, Writer out, ForkJoinPool pool) throws IOException {
+        TraceReader reader = new TraceReader(in);
+        Deque<ForkJoinTask<String>> inFlight = new ArrayDeque<>();
+        int window = TRACES_IN_FLIGHT_PER_THREAD * pool.getParallelism();
+        for (Trace trace = reader.next(); trace != null; trace = reader.next()) {
+            Trace t = trace;
+            inFlight.add(pool.submit(() -> toJson(t.id, match(t.lons(), t.lats()))));
+            if (inFlight.size() >= window) {
+                writeLine(out, inFlight.poll());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            writeLine(out, inFlight.poll());
+        }
+        out.flush();
+    }
+
+    /** Write the task's line once done, first flushing what is written if it is not yet. */
+    private static void writeLine(Writer out, ForkJoinTask<String> task) throws IOException {
+        if (!task.isDone()) {
+            out.flush();
+        }
+        out.write(task.join());
+        out.write('\n');
+    }
+
+    private static String toJson(String id, Match[] matches) {
+        List<Map<String, Object>> fixes = new ArrayList<>();
+        for (Match m : matches) {
+            if (m == null) {
+                fixes.add(null);
+                continue;
+            }
+            Map<String, Object> fix = new HashMap<>();
+            fix.put("from", m.getFrom());
+            fix.put("to", m.getTo());
+            fix.put("lon", m.getLon());
+            fix.put("lat", m.getLat());
+            fix.put("error", m.getError());
+            fixes.add(fix);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("trace", id);
+        result.put("matches", fixes);
+        return GSON.toJson(result);
+    }
+
+    /**
+     * The candidates of fix <code>fix</code>, at (lon, lat) and projected at (x, y): the closest
+     * points of the usable edges within SEARCH_RADIUS_METRES, the closest MAX_CANDIDATES kept.
+     */
+    private Layer candidates(int fix, double lon, double lat, double x, double y) {
+        Layer layer = new Layer(fix);
+        double r2 = nodeRadius * nodeRadius;
+        graph.getRoadIndex().visitNearest(lon, lat, n -> roads.isRoutable(profile, n.getIndex()),
+            n -> {
+                int v = n.getIndex();
+                if (roads.distanceSquared(v, x, y) > r2) {
+                    return false;
+                }
+                for (int e = roads.firstEdge(v); e < roads.lastEdge(v); e++) {
+                    offer(layer, e, x, y);
+                }
+                /* Edges entering v from a node the search does not reach would be missed. */
+                for (int i = roads.firstInEdge(v); i < roads.lastInEdge(v); i++) {
+                    int e = roads.inEdge(i);
+                    int u = roads.source(e);
+                    if (roads.distanceSquared(u, x, y) > r2 || !roads.isRoutable(profile, u)) {
+                        offer(layer, e, x, y);
+                    }
+                }
+                return true;
+            });
+        for (int c = 0; c < layer.count; c++) {
+            double d = layer.distance[c] / SIGMA_METRES;
+            layer.emission[c] = -0.5 * d * d;
+        }
+        return layer;
+    }
+
+    /**
+     * Add edge <code>e</code>'s closest point to (x, y) to the layer's candidates, if it is
+     * close enough and among the closest.
+     */
+    private void offer(Layer layer, int e, double x, double y) {
+        int u = roads.source(e);
+        int w = roads.target(e);
+        if (roads.weights(profile)[e] == Float.POSITIVE_INFINITY
+                || !roads.isRoutable(profile, u) || !roads.isRoutable(profile, w)) {
+            return;
+        }
+        double t = position(e, x, y);
+        double dx = roads.x(u) + t * (roads.x(w) - roads.x(u)) - x;
+        double dy = roads.y(u) + t * (roads.y(w) - roads.y(u)) - y;
+        double d = Math.sqrt(dx * dx + dy * dy);
+        if (d > SEARCH_RADIUS_METRES) {
+            return;
+        }
+        if (layer.count == MAX_CANDIDATES && d >= layer.distance[MAX_CANDIDATES - 1]) {
+            return;
+        }
+        /* Insertion into the candidates, kept sorted by distance; the furthest falls off. */
+        int at = layer.count < MAX_CANDIDATES ? layer.count++ : MAX_CANDIDATES - 1;
+        while (at > 0 && layer.distance[at - 1] > d) {
+            layer.edge[at] = layer.edge[at - 1];
+            layer.position[at] = layer.position[at - 1];
+            layer.distance[at] = layer.distance[at - 1];
+            at -= 1;
+        }
+        layer.edge[at] = e;
+        layer.position[at] = t;
+        layer.distance[at] = d;
+    }
+
+    /** The fraction along edge <code>e</code> of its closest point to (x, y). */
+    private double position(int e, double x, double y) {
+        int u = roads.source(e);
+        int w = roads.target(e);
+        double ex = roads.x(w) - roads.x(u);
+        double ey = roads.y(w) - roads.y(u);
+        double len2 = ex * ex + ey * ey;
+        double t = len2 == 0 ? 0 : ((x - roads.x(u)) * ex + (y - roads.y(u)) * ey) / len2;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    private Match toMatch(int e, double x, double y) {
+        int u = roads.source(e);
+        int w = roads.target(e);
+        double t = position(e, x, y);
+        double mx = roads.x(u) + t * (roads.x(w) - roads.x(u));
+        double my = roads.y(u) + t * (roads.y(w) - roads.y(u));
+        return new Match(roads.id(u), roads.id(w), roads.unprojectX(mx), roads.unprojectY(my),
+                Math.hypot(mx - x, my - y));
+    }
+
+    /**
+     * Follow the best path back from the likeliest candidate of the last layer to layer
+     * <code>first</code>, choosing each layer's candidate on the way.
+     */
+    private static void decode(List<Layer> layers, int first) {
+        Layer last = layers.get(layers.size() - 1);
+        int c = 0;
+        for (int i = 1; i < last.count; i++) {
+            c = last.score[i] > last.score[c] ? i : c;
+        }
+        for (int l = layers.size() - 1; l >= first; l--) {
+            Layer layer = layers.get(l);
+            layer.chosen = c;
+            c = layer.parent[c];
+        }
+    }
+
+    /**
+     * Viterbi steps between consecutive layers, with the scratch arrays they reuse.
+     */
+    private final class Transitions {
+        /** The distinct edge sources of the next layer's candidates, and each one's index. */
+        private final int[] targets = new int[MAX_CANDIDATES];
+        private final int[] targetOf = new int[MAX_CANDIDATES];
+        /** lengths[c][t]: the route length from candidate c's edge end to target t. */
+        private final double[][] lengths = new double[MAX_CANDIDATES][MAX_CANDIDATES];
+
+        /**
+         * Score the candidates of <code>next</code> by their likeliest predecessor in
+         * <code>prev</code>, whose fix is <code>straight</code> metres from next's.
+         * @return Whether any candidate of next has a route from one of prev.
+         */
+        boolean step(Layer prev, Layer next, double straight) {
+            int count = 0;
+            for (int j = 0; j < next.count; j++) {
+                int u = roads.source(next.edge[j]);
+                int t = 0;
+                while (t < count && targets[t] != u) {
+                    t += 1;
+                }
+                if (t == count) {
+                    targets[count++] = u;
+                }
+                targetOf[j] = t;
+            }
+            double maxLength = MAX_ROUTE_FACTOR * straight + 2 * SEARCH_RADIUS_METRES;
+            Arrays.fill(next.score, 0, next.count, Double.NEGATIVE_INFINITY);
+            boolean linked = false;
+            for (int i = 0; i < prev.count; i++) {
+                if (prev.score[i] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                int e = prev.edge[i];
+                int end = roads.target(e);
+                /* Candidates leaving from the same node share one search; candidates skipped
+                 * above never ran theirs. */
+                int same = 0;
+                while (same < i && (prev.score[same] == Double.NEGATIVE_INFINITY
+                        || roads.target(prev.edge[same]) != end)) {
+                    same += 1;
+                }
+                if (same < i) {
+                    System.arraycopy(lengths[same], 0, lengths[i], 0, count);
+                } else {
+                    router.lengthsTo(end, profile, maxLength, targets, count, lengths[i]);
+                }
+                double left = (1 - prev.position[i]) * roads.length(e);
+                for (int j = 0; j < next.count; j++) {
+                    int f = next.edge[j];
+                    double route = f == e && next.position[j] >= prev.position[i]
+                            ? (next.position[j] - prev.position[i]) * roads.length(e)
+                            : left + lengths[i][targetOf[j]] + next.position[j] * roads.length(f);
+                    if (route == Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                    double score = prev.score[i] - Math.abs(route - straight) / BETA_METRES
+                            + next.emission[j];
+                    if (score > next.score[j]) {
+                        next.score[j] = score;
+                        next.parent[j] = i;
+                        linked = true;
+                    }
+                }
+            }
+            return linked;
+        }
+    }
+
+    /**
+     * The candidates of one fix, closest first, and their Viterbi state.
+     */
+    private static final class Layer {
+        final int fix;
+        int count = 0;
+        final int[] edge = new int[MAX_CANDIDATES];
+        /** The fraction along the edge of the candidate point. */
+        final double[] position = new double[MAX_CANDIDATES];
+        final double[] distance = new double[MAX_CANDIDATES];
+        /** Log-likelihoods, up to a constant: of the fix given the candidate, and of the best
+         * path ending at the candidate. */
+        final double[] emission = new double[MAX_CANDIDATES];
+        final double[] score = new double[MAX_CANDIDATES];
+        /** The best path's candidate in the previous layer. */
+        final int[] parent = new int[MAX_CANDIDATES];
+        int chosen = 0;
+
+        Layer(int fix) {
+            this.fix = fix;
+        }
+    }
+
+    /**
+     * One trace read by a TraceReader.
+     */
+    private static final class Trace {
+        final String id;
+        private double[] lons = new double[64];
+        private double[] lats = new double[64];
+        private int size = 0;
+
+        Trace(String id) {
+            this.id = id;
+        }
+
+        void add(double lon, double lat) {
+            if (size == lons.length) {
+                lons = Arrays.copyOf(lons, 2 * size);
+                lats = Arrays.copyOf(lats, 2 * size);
+            }
+            lons[size] = lon;
+            lats[size] = lat;
+            size += 1;
+        }
+
+        double[] lons() {
+            return Arrays.copyOf(lons, size);
+        }
+
+        double[] lats() {
+            return Arrays.copyOf(lats, size);
+        }
+    }
+
+    /**
+     * Reads fixes line by line and groups consecutive fixes of the same trace, reading one
+     * line past the end of each trace.
+     */
+    private static final class TraceReader {
+        private final BufferedReader in;
+        private int lineNumber = 0;
+        /** The first fix of the next trace, already read: id, longitude and latitude. */
+        private String pendingId;
+        private double pendingLon;
+        private double pendingLat;
+
+        TraceReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        /** The next trace, or null at the end of the input. */
+        Trace next() throws IOException {
+            if (pendingId == null && !readFix()) {
+                return null;
+            }
+            Trace trace = new Trace(pendingId);
+            do {
+                trace.add(pendingLon, pendingLat);
+            } while (readFix() && pendingId.equals(trace.id));
+            return trace;
+        }
+
+        /**
+         * Read the next fix into the pending fields.
+         * @return False at the end of the input, with the pending id cleared.
+         */
+        private boolean readFix() throws IOException {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber += 1;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                try {
+                    if (fields.length < 3) {
+                        throw new NumberFormatException();
+                    }
+                    pendingLon = Double.parseDouble(fields[1].trim());
+                    pendingLat = Double.parseDouble(fields[2].trim());
+                } catch (NumberFormatException e) {
+                    if (lineNumber == 1) {
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Malformed fix on line " + lineNumber
+                            + ": expected trace,lon,lat.");
+                }
+                pendingId = fields[0].trim();
+                return true;
+            }
+            pendingId = null;
+            return false;
+        }
+    }
+}
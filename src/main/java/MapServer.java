@@ -1,12 +1,25 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
@@ -16,6 +29,9 @@ import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
 import static spark.Spark.*;
 
 /**
@@ -27,24 +43,40 @@ import static spark.Spark.*;
 public class MapServer {
     /**
      * The root upper left/lower right longitudes and latitudes represent the bounding box of
-     * the root tile, as the images in the img/ folder are scraped.
+     * the root tile, as the images in the img/ folder are scraped. A server run as a shard of
+     * RegionRouter serves another region, whose bounds the system property bearmaps.bounds
+     * gives as "ullat,ullon,lrlat,lrlon".
      * Longitude == x-axis; latitude == y-axis.
      */
-    public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
-            ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
+    private static final double[] ROOT_BOUNDS = getRootBounds(
+            37.892195547244356, -122.2998046875, 37.82280243352756, -122.2119140625);
+    public static final double ROOT_ULLAT = ROOT_BOUNDS[0], ROOT_ULLON = ROOT_BOUNDS[1],
+            ROOT_LRLAT = ROOT_BOUNDS[2], ROOT_LRLON = ROOT_BOUNDS[3];
     /** Each tile is 256x256 pixels. */
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
-    private static final int HALT_RESPONSE = 403;
+    static final int HALT_RESPONSE = 403;
+    /** Separates the parts of a streamed raster response; see streamRaster. */
+    private static final String RASTER_STREAM_BOUNDARY = "bearmaps-raster";
+    /** HTTP response when too much raster work is already queued. */
+    private static final int BUSY_RESPONSE = 503;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
-    /** The tile images are in the IMG_ROOT folder. */
+    /** Isochrone information: the route's color, mostly transparent, edged with a thinner
+     * route stroke. */
+    public static final Color ISOCHRONE_FILL_COLOR = new Color(108, 181, 230, 70);
+    public static final float ISOCHRONE_STROKE_WIDTH_PX = 2.0f;
+    /**
+     * The tile images are in the IMG_ROOT folder, unless the system property bearmaps.tiles
+     * names another directory or classpath prefix.
+     */
     private static final String IMG_ROOT = "img/";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. The system property bearmaps.osm overrides it with a file
+     * on disk, which is re-read whenever the data is reloaded.
      **/
     private static final String OSM_DB_PATH = "berkeley.osm";
     /**
@@ -53,20 +85,149 @@ public class MapServer {
      * i.e., params.get("ullat") inside getMapRaster(). <br>
      * ullat -> upper left corner latitude,<br> ullon -> upper left corner longitude, <br>
      * lrlat -> lower right corner latitude,<br> lrlon -> lower right corner longitude <br>
-     * w -> user viewport window width in pixels,<br> h -> user viewport height in pixels.
+     * w -> user viewport window width in pixels,<br> h -> user viewport height in pixels.<br>
+     * A raster request may also carry these flags:<br>
+     * stream -> send the raster in strips as it is composited; see streamRaster,<br>
+     * fit -> return the requested box at w by h pixels rather than the whole tiles covering
+     * it; see fitToViewport. Ignored when streaming.
      **/
-    private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
+    static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat -> start point latitude,<br> start_lon -> start point longitude,<br>
-     * end_lat -> end point latitude, <br>end_lon -> end point longitude.
+     * end_lat -> end point latitude, <br>end_lon -> end point longitude.<br>
+     * A route request may also name the RoadGraph profile to route with, DEFAULT_ROUTE_PROFILE
+     * if it does not:<br> profile -> "car", "walk" or "distance".
      **/
-    private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
+    static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    private static final int DEFAULT_ROUTE_PROFILE = RoadGraph.CAR;
+    /**
+     * Alternative route requests take the route parameters, and optionally:<br>
+     * alternatives -> the most routes to return, the shortest included, up to
+     * MAX_ALTERNATIVES.<br>
+     * start_id -> the OSM id of the node to start from, in place of the node closest to the
+     * start point; there are no routes if the graph has no such routable node. RegionRouter
+     * uses it to start one leg of a route where the leg before it ended.
+     */
+    private static final int DEFAULT_ALTERNATIVES = 3;
+    private static final int MAX_ALTERNATIVES = 5;
+    /** An alternative may share at most this fraction of its weight with the routes before it. */
+    private static final double ALTERNATIVE_MAX_OVERLAP = 0.6;
+    /** Alternatives may cost this many times the search work of the shortest route alone. */
+    private static final double ALTERNATIVE_BUDGET = 2;
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat -> start point latitude,<br> lon -> start point longitude,<br>
+     * limit -> how far to reach, in the profile's weight: metres for "distance", seconds for
+     * the others, up to MAX_ISOCHRONE_LIMITS.<br>
+     * It may also name the profile, DEFAULT_ISOCHRONE_PROFILE if it does not.<br>
+     * A raster request draws an isochrone if it has the same parameters prefixed with iso_,
+     * and iso_profile for its profile.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lat", "lon", "limit"};
+    private static final String[] RASTER_ISOCHRONE_PARAMS = {"iso_lat", "iso_lon", "iso_limit"};
+    private static final int DEFAULT_ISOCHRONE_PROFILE = RoadGraph.DISTANCE;
+    /**
+     * The largest isochrone limit per profile, so one request cannot search the whole graph:
+     * 20 km by distance, half an hour by car and four hours on foot.
+     */
+    private static final double[] MAX_ISOCHRONE_LIMITS = {20_000, 1_800, 14_400};
+    /**
+     * Search requests take a term, and optionally these flags:<br>
+     * full -> return location data for each match instead of names,<br>
+     * words -> match the words of the term anywhere in a name, the last word as a prefix.<br>
+     * A search request may also carry the point its results should be ranked around, either
+     * directly or as the user's current viewport, in which case the viewport center is used.<br>
+     * lat -> center latitude,<br> lon -> center longitude.
+     **/
+    static final String[] SEARCH_CENTER_PARAMS = {"lat", "lon"};
+    static final String[] SEARCH_VIEWPORT_PARAMS = {"ullat", "ullon", "lrlat", "lrlon"};
+    /** Number of results returned by a proximity-ranked search when no limit is given. */
+    static final int DEFAULT_SEARCH_LIMIT = 10;
+    /**
+     * Nearby requests take the lat and lon of SEARCH_CENTER_PARAMS, and optionally:<br>
+     * limit -> the most locations to return, up to MAX_NEARBY_LIMIT,<br>
+     * radius -> the furthest a location may be, in metres,<br>
+     * prefix -> what the location's name must start with.
+     */
+    static final int MAX_NEARBY_LIMIT = 1000;
+    /** Nearby requests whose prefix matches at most this many locations rank them directly. */
+    private static final int DIRECT_RANK_LOCATIONS = 64;
+    /** Prefixes up to this many cleaned characters have their responses precomputed. */
+    private static final int PRECOMPUTED_PREFIX_LENGTH = 3;
+    /** Bounds on the LRU of serialized responses for longer search terms. */
+    private static final int SEARCH_CACHE_ENTRIES = 4096;
+    private static final long SEARCH_CACHE_BYTES = 32L << 20;
+    /**
+     * Proximity-ranked searches share the candidates found for the grid cell of this many
+     * degrees that holds their center, about half a kilometre across, so that the keystrokes
+     * of a search in one view walk the index once.
+     */
+    private static final double SEARCH_CELL_DEGREES = 0.005;
+    /**
+     * How much farther than the limit-th match from a cell's center, in the degrees the POI
+     * index measures, a match may lie and still rank within the limit around another point of
+     * the cell: the cell's diagonal, longitude differences counting for no more than degrees.
+     */
+    private static final double SEARCH_CELL_REACH = SEARCH_CELL_DEGREES * Math.sqrt(2);
+    /** Bounds on the route overlay cache; overlay tiles are 8KB each. */
+    private static final int ROUTE_CACHE_ROUTES = 256;
+    private static final int ROUTE_CACHE_TILES = 8192;
+    /** Bound on the tiles on disk kept decoded to upsample overzoomed tiles from, 256KB each;
+     * the overzoomed tiles themselves are kept in the decoded tile cache. */
+    private static final int OVERZOOM_CACHE_ANCESTORS = 4;
+    /** Bounds on the off-heap decoded tile cache, 256KB per tile, and the tiles per slab it
+     * grows by; bearmaps.tileCacheTiles overrides the bound, and 0 disables the cache. */
+    private static final int TILE_CACHE_TILES = 1024;
+    private static final int TILE_CACHE_SLAB_TILES = 64;
+    /** Bound on the raster pixel arrays pooled for reuse between requests. */
+    private static final long RASTER_POOL_BYTES = 128L << 20;
+    /** How long a request waits for an identical raster or route being computed before it
+     * computes its own. */
+    private static final long COALESCE_TIMEOUT_MS = 10000;
+    /** Destination images and encode buffers of raster requests, reused between them. */
+    private static final RasterBuffers BUFFERS = new RasterBuffers(RASTER_POOL_BYTES);
+    /** Gson is thread-safe, so a single instance serializes every response. */
+    private static final Gson GSON = new Gson();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
-    private static GraphDB g;
+    /**
+     * The graph, tiles and caches currently served. Replaced as a whole by reloadData; each
+     * request reads it once and uses that version throughout.
+     */
+    private static volatile MapData data;
+    /** Set while reloadData is loading a new version in the background. */
+    private static final AtomicBoolean RELOADING = new AtomicBoolean();
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    /**
+     * Runs the request handlers' CPU-heavy work. Configured with the system properties
+     * bearmaps.rasterThreads and bearmaps.rasterQueue.
+     */
+    private static final RequestExecutor EXECUTOR = new RequestExecutor(
+            Integer.getInteger("bearmaps.rasterThreads", CORES),
+            Integer.getInteger("bearmaps.rasterQueue", 2 * CORES));
+    /**
+     * Matches the traces of batch map-matching requests, bearmaps.matchThreads at a time; kept
+     * apart from the raster pool so a large batch cannot queue interactive requests behind it.
+     */
+    private static final ForkJoinPool MATCH_POOL =
+            new ForkJoinPool(Integer.getInteger("bearmaps.matchThreads", CORES));
+    /**
+     * Raster responses being computed, keyed as by getRasterKey, and routes being computed,
+     * keyed by data version and route id, so that identical concurrent requests share one
+     * computation.
+     */
+    private static final SingleFlight<String, RasterResponse> RASTER_FLIGHTS =
+            new SingleFlight<>(COALESCE_TIMEOUT_MS, Metrics.RASTER_COALESCED);
+    private static final SingleFlight<String, RouteOverlay> ROUTE_FLIGHTS =
+            new SingleFlight<>(COALESCE_TIMEOUT_MS, Metrics.ROUTE_COALESCED);
+
+    static {
+        Metrics.recordGcPauses();
+    }
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -74,10 +235,82 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        g = new GraphDB(OSM_DB_PATH); //OSM_DB_PATH);
+        data = loadData(1);
+    }
+
+    /** The loaded graph, for benchmarks and tools that drive MapServer in-process. */
+    static GraphDB getGraphDB() {
+        return data.getGraph();
+    }
+
+    /**
+     * Load version <code>version</code> of the data: parse the OSM file, build its indexes and
+     * precompute its short-prefix search responses, so that it is warm before it is served.
+     */
+    private static MapData loadData(long version) {
+        long start = System.nanoTime();
+        GraphDB graph = new GraphDB(System.getProperty("bearmaps.osm", OSM_DB_PATH));
+        if (graph.getPoiIndex() == null) {
+            throw new IllegalStateException("Could not parse the OSM data.");
+        }
+        SearchCache prefixCache = new SearchCache(SEARCH_CACHE_ENTRIES, SEARCH_CACHE_BYTES);
+        prefixCache.precompute(getShortPrefixes(graph), prefix -> toJsonBytes(
+                getLocationsByPrefix(graph, prefix)));
+        MapData loaded = new MapData(version, graph,
+                System.getProperty("bearmaps.tiles", IMG_ROOT), prefixCache,
+                new SearchCache(SEARCH_CACHE_ENTRIES, SEARCH_CACHE_BYTES),
+                new LruCache<>(SEARCH_CACHE_ENTRIES),
+                new RouteTiles(ROUTE_CACHE_ROUTES, ROUTE_CACHE_TILES),
+                new OverzoomTiles(OVERZOOM_CACHE_ANCESTORS),
+                new TileSlabCache(Integer.getInteger("bearmaps.tileCacheTiles",
+                        TILE_CACHE_TILES), TILE_CACHE_SLAB_TILES, TILE_SIZE));
+        Metrics.DATA_LOAD.recordSince(start);
+        return loaded;
+    }
+
+    /**
+     * Load the next version of the data on a background thread and swap it in once it is ready.
+     * Requests keep being served from the current version meanwhile; if loading fails, the
+     * current version stays in place.
+     * @return False if a reload was already in progress, in which case nothing new is started.
+     */
+    static boolean reloadData() {
+        if (!RELOADING.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread loader = new Thread(() -> {
+            try {
+                data = loadData(data.getVersion() + 1);
+                Metrics.DATA_RELOADS.increment();
+            } catch (RuntimeException e) {
+                Metrics.DATA_RELOAD_FAILURES.increment();
+                e.printStackTrace();
+            } finally {
+                RELOADING.set(false);
+            }
+        }, "data-reload");
+        /* Loading is long and CPU-heavy; it should not take cores from requests being served. */
+        loader.setPriority(Thread.MIN_PRIORITY);
+        loader.setDaemon(true);
+        loader.start();
+        return true;
+    }
+
+    /**
+     * The bounds of bearmaps.bounds, in the order of REQUIRED_RASTER_REQUEST_PARAMS, or the
+     * ones given if it is not set.
+     */
+    private static double[] getRootBounds(double... otherwise) {
+        String bounds = System.getProperty("bearmaps.bounds");
+        return bounds == null ? otherwise : RegionShard.parseBounds(bounds);
     }
 
-    private static int getHerokuAssignedPort() {
+    static int getHerokuAssignedPort() {
+        /* A shard started by RegionRouter is told its port, as it shares the environment. */
+        Integer shardPort = Integer.getInteger("bearmaps.port");
+        if (shardPort != null) {
+            return shardPort;
+        }
         ProcessBuilder processBuilder = new ProcessBuilder();
         if (processBuilder.environment().get("PORT") != null) {
             return Integer.parseInt(processBuilder.environment().get("PORT"));
@@ -87,6 +320,18 @@ public class MapServer {
     public static void main(String[] args) {
         initialize();
         port(getHerokuAssignedPort());
+        /* Request threads mostly wait on the raster pool, so the HTTP pool can be sized well
+         * beyond the core count; bearmaps.httpThreads overrides the Jetty default, and
+         * bearmaps.virtualThreads serves every request on a virtual thread instead. */
+        VirtualThreadPool virtualThreads = Boolean.getBoolean("bearmaps.virtualThreads")
+                ? VirtualThreadPool.create() : null;
+        Integer httpThreads = Integer.getInteger("bearmaps.httpThreads");
+        if (virtualThreads != null) {
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(virtualThreads));
+        } else if (httpThreads != null) {
+            threadPool(httpThreads);
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -103,47 +348,127 @@ public class MapServer {
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* Required to have valid raster params */
             validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
-
-            /* Create the Map for return parameters. */
-            Map<String, Object> rasteredImgParams = new HashMap<>();
-            /* getMapRaster() does almost all the work for this API call */
-            BufferedImage im = getMapRaster(rasterParams, rasteredImgParams);
             /* Check if we have routing parameters. */
             HashMap<String, Double> routeParams =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            /* If we do, draw the route too. */
-            if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
-                findAndDrawRoute(routeParams, rasteredImgParams, im);
+            int profile = getRouteProfile(req);
+            /* And whether to draw an isochrone. */
+            HashMap<String, Double> isoParams = getRequestParams(req, RASTER_ISOCHRONE_PARAMS);
+            int isoProfile = getRouteProfile(req, "iso_profile", DEFAULT_ISOCHRONE_PROFILE);
+            MapData d = data;
+            long start = System.nanoTime();
+            try {
+                if (req.queryParams().contains("stream")) {
+                    RouteOverlay route = getCachedRoute(d, routeParams, profile);
+                    Isochrone isochrone = hasRequestParameters(isoParams,
+                            RASTER_ISOCHRONE_PARAMS) ? (Isochrone) runCpuOrBusy(() ->
+                            getRasterIsochrone(d, isoParams, isoProfile)) : null;
+                    res.type("multipart/mixed; boundary=" + RASTER_STREAM_BOUNDARY);
+                    streamRaster(d, rasterParams, route, isochrone, res.raw().getOutputStream());
+                    return "";
+                }
+                boolean fit = req.queryParams().contains("fit");
+                RasterResponse raster = getCoalescedRaster(d, rasterParams, routeParams,
+                        profile, isoParams, isoProfile, fit);
+                /* Written out here, on the request thread, so a slow client holds no thread
+                 * of the raster pool. */
+                res.type("application/json");
+                long encodeStart = System.nanoTime();
+                raster.writeJson(res.raw().getOutputStream());
+                Metrics.RESPONSE_ENCODE.recordSince(encodeStart);
+                return "";
+            } finally {
+                Metrics.RASTER_REQUEST.recordSince(start);
             }
-            /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                writeJpgToStream(im, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-                os.flush();
-                os.close();
-            }
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
+        });
+
+        /* Define the endpoint for alternative routes, as Json. */
+        get("/routes", (req, res) -> {
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            validateRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS);
+            int profile = getRouteProfile(req);
+            int k = Math.min(MAX_ALTERNATIVES, getIntParam(req, "alternatives",
+                    DEFAULT_ALTERNATIVES));
+            Long startId = getLongParam(req, "start_id");
+            GraphDB graph = data.getGraph();
+            return runCpuOrBusy(() -> GSON.toJson(getAlternativeRoutes(graph, routeParams,
+                    startId, profile, k)));
+        });
+
+        /* Define the endpoint for the area reachable within a limit, as GeoJSON. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> isoParams =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            validateRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            int profile = getRouteProfile(req, "profile", DEFAULT_ISOCHRONE_PROFILE);
+            double limit = getIsochroneLimit(isoParams.get("limit"), profile);
+            GraphDB graph = data.getGraph();
+            return runCpuOrBusy(() -> GSON.toJson(getIsochroneFeature(
+                    getIsochrone(graph, isoParams.get("lon"), isoParams.get("lat"), limit,
+                            profile), limit, profile)));
+        });
+
+        /* Match the GPS traces streamed in as the request body to roads under the profile
+         * parameter, streaming each trace's matches back as it is done; see
+         * MapMatcher.matchAll for the formats. */
+        post("/match", (req, res) -> {
+            MapMatcher matcher = new MapMatcher(data.getGraph(), getRouteProfile(req));
+            res.type("application/x-ndjson");
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    req.raw().getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                    res.raw().getOutputStream(), StandardCharsets.UTF_8));
+            matcher.matchAll(in, out, MATCH_POOL);
+            return "";
         });
 
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
-            Set<String> reqParams = req.queryParams();
-            String term = req.queryParams("term");
-            Gson gson = new Gson();
-            /* Search for actual location data. */
-            if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
-            } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
+            MapData d = data;
+            long start = System.nanoTime();
+            try {
+                return getSearchResponse(d, req);
+            } finally {
+                Metrics.SEARCH_REQUEST.recordSince(start);
+            }
+        });
+
+        /* Define the API endpoint for named locations around a point. */
+        get("/nearby", (req, res) -> {
+            HashMap<String, Double> center = getRequestParams(req, SEARCH_CENTER_PARAMS);
+            validateRequestParameters(center, SEARCH_CENTER_PARAMS);
+            int limit = Math.min(MAX_NEARBY_LIMIT, getSearchLimit(req));
+            double radius = getDoubleParam(req, "radius", Double.POSITIVE_INFINITY);
+            String prefix = req.queryParams("prefix");
+            GraphDB graph = data.getGraph();
+            long start = System.nanoTime();
+            try {
+                return GSON.toJson(getLocationsAround(graph, center.get("lon"),
+                        center.get("lat"), limit, radius, prefix));
+            } finally {
+                Metrics.NEARBY_REQUEST.recordSince(start);
+            }
+        });
+
+        /* Per-stage latencies and counters, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.render();
+        });
+
+        /* Load the OSM file and tiles again, and swap them in once loaded. Only accepted from
+         * the machine itself, since the server is otherwise unauthenticated. */
+        post("/reload", (req, res) -> {
+            if (!isLoopback(req.ip())) {
+                halt(HALT_RESPONSE, "Reload is only accepted from localhost.");
             }
+            boolean started = reloadData();
+            res.status(202);
+            Map<String, Object> status = new HashMap<>();
+            status.put("version", data.getVersion());
+            status.put("reload_started", started);
+            return GSON.toJson(status);
         });
 
         /* Define map application redirect */
@@ -153,6 +478,432 @@ public class MapServer {
         });
     }
 
+    /**
+     * Run CPU-heavy request work on the raster pool, and answer BUSY_RESPONSE instead once its
+     * queue is full.
+     */
+    private static Object runCpuOrBusy(Callable<Object> task) throws Exception {
+        try {
+            return EXECUTOR.runCpu(task);
+        } catch (RejectedExecutionException e) {
+            Metrics.RASTER_REJECTED.increment();
+            halt(BUSY_RESPONSE, "Server busy - try again.");
+            return null;
+        }
+    }
+
+    private static boolean isLoopback(String ip) {
+        return "127.0.0.1".equals(ip) || "0:0:0:0:0:0:0:1".equals(ip) || "::1".equals(ip);
+    }
+
+    /**
+     * The raster of a raster request, as getRasterResponse, computed on the raster pool.
+     * Identical concurrent requests share one computation, and so one JPEG: requests are
+     * identical if they ask for the same raster, route and isochrone, as keyed by
+     * getRasterKey, which takes only the request's parameters, so that nothing is computed
+     * before a request is admitted to the pool. Requests waiting on another's computation, or
+     * on its route, wait on their own thread, and take no place in the raster pool or its
+     * queue.
+     */
+    private static RasterResponse getCoalescedRaster(MapData d,
+                                                     HashMap<String, Double> rasterParams,
+                                                     HashMap<String, Double> routeParams,
+                                                     int profile,
+                                                     HashMap<String, Double> isoParams,
+                                                     int isoProfile, boolean fit)
+            throws Exception {
+        String key = getRasterKey(d, rasterParams, routeParams, profile, isoParams, isoProfile,
+                fit);
+        return RASTER_FLIGHTS.run(key, () -> {
+            RouteOverlay route = getCachedRoute(d, routeParams, profile);
+            return (RasterResponse) runCpuOrBusy(() -> {
+                Map<String, Object> rasteredImgParams = new HashMap<>();
+                ArrayList<QuadTreeNode> tiles = getRasterTiles(rasterParams,
+                        rasteredImgParams);
+                return getRasterResponse(d, tiles, rasteredImgParams, rasterParams, route,
+                        getRasterIsochrone(d, isoParams, isoProfile), fit);
+            });
+        });
+    }
+
+    /**
+     * The key under which identical raster requests are coalesced: the data version, the
+     * requested box and size, whether it is fit to the viewport, the route parameters and
+     * profile, and the isochrone parameters.
+     */
+    private static String getRasterKey(MapData d, HashMap<String, Double> rasterParams,
+                                       HashMap<String, Double> routeParams, int profile,
+                                       HashMap<String, Double> isoParams, int isoProfile,
+                                       boolean fit) {
+        StringBuilder key = new StringBuilder().append(d.getVersion()).append('/');
+        for (String param : REQUIRED_RASTER_REQUEST_PARAMS) {
+            key.append(rasterParams.get(param)).append(',');
+        }
+        key.append(fit ? "fit" : "").append('/');
+        if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
+            for (String param : REQUIRED_ROUTE_REQUEST_PARAMS) {
+                key.append(routeParams.get(param)).append(',');
+            }
+            key.append(RoadGraph.profileName(profile));
+        }
+        key.append('/');
+        if (hasRequestParameters(isoParams, RASTER_ISOCHRONE_PARAMS)) {
+            key.append(isoParams.get("iso_lon")).append(',').append(isoParams.get("iso_lat"))
+                    .append(',').append(isoParams.get("iso_limit")).append(',')
+                    .append(RoadGraph.profileName(isoProfile));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Raster <code>tiles</code>, as queried by getRasterTiles along with
+     * <code>rasteredImgParams</code>, draw the route and isochrone on it if they were
+     * requested, fit it to the viewport if asked to, and encode the result as a JPEG.
+     */
+    private static RasterResponse getRasterResponse(MapData d, List<QuadTreeNode> tiles,
+                                            Map<String, Object> rasteredImgParams,
+                                            HashMap<String, Double> rasterParams,
+                                            RouteOverlay route, Isochrone isochrone,
+                                            boolean fit)
+            throws IOException {
+        /* getMapRaster() does almost all the work for this API call. If we have routing
+         * parameters, the route's cached overlay tiles are composited in with the map tiles. */
+        BufferedImage im = getMapRaster(d, tiles, rasteredImgParams, route);
+        try {
+            if (isochrone != null) {
+                Metrics.ISOCHRONE_DRAW.record(drawIsochrone(isochrone, im, rasteredImgParams,
+                        0));
+            }
+            if (fit) {
+                BufferedImage fitted = fitToViewport(im, rasterParams, rasteredImgParams);
+                if (fitted != im) {
+                    BUFFERS.release(im);
+                    im = fitted;
+                }
+            }
+            /* On an image query success, encode the image for the response. The JPEG is
+             * written into this thread's pooled buffer, and copied out once at its size, to
+             * be shared by every request waiting on this one. */
+            byte[] jpeg = null;
+            if (rasteredImgParams.containsKey("query_success")
+                    && (Boolean) rasteredImgParams.get("query_success")) {
+                RasterBuffers.Bytes jpg = BUFFERS.jpegBuffer();
+                long start = System.nanoTime();
+                writeJpgToStream(im, jpg);
+                jpeg = Arrays.copyOf(jpg.array(), jpg.size());
+                Metrics.JPEG_ENCODE.recordSince(start);
+            }
+            return new RasterResponse(rasteredImgParams, jpeg);
+        } finally {
+            BUFFERS.release(im);
+        }
+    }
+
+    /**
+     * Crop the tile-aligned raster <code>im</code> to the requested box and scale it to the
+     * requested w by h pixels, so no pixel outside the viewport is encoded or sent. The
+     * raster_* entries of <code>rasteredImgParams</code> are updated to describe the result.
+     * Where the requested box extends past the map, the result stops at the map's edge, at the
+     * same scale, and so is smaller than w by h.
+     */
+    private static BufferedImage fitToViewport(BufferedImage im, Map<String, Double> params,
+                                               Map<String, Object> rasteredImgParams) {
+        double ulLon = (Double) rasteredImgParams.get("raster_ul_lon");
+        double ulLat = (Double) rasteredImgParams.get("raster_ul_lat");
+        double lrLon = (Double) rasteredImgParams.get("raster_lr_lon");
+        double lrLat = (Double) rasteredImgParams.get("raster_lr_lat");
+        double cropUlLon = Math.max(ulLon, params.get("ullon"));
+        double cropUlLat = Math.min(ulLat, params.get("ullat"));
+        double cropLrLon = Math.min(lrLon, params.get("lrlon"));
+        double cropLrLat = Math.max(lrLat, params.get("lrlat"));
+        if (cropLrLon <= cropUlLon || cropUlLat <= cropLrLat) {
+            return im;
+        }
+        long start = System.nanoTime();
+        double lonPerPx = (lrLon - ulLon) / im.getWidth();
+        double latPerPx = (ulLat - lrLat) / im.getHeight();
+        double outLonPerPx = (params.get("lrlon") - params.get("ullon")) / params.get("w");
+        double outLatPerPx = (params.get("ullat") - params.get("lrlat")) / params.get("h");
+        int width = Math.max(1, (int) Math.round((cropLrLon - cropUlLon) / outLonPerPx));
+        int height = Math.max(1, (int) Math.round((cropUlLat - cropLrLat) / outLatPerPx));
+        BufferedImage fitted = RasterResampler.resample(im, (cropUlLon - ulLon) / lonPerPx,
+                (ulLat - cropUlLat) / latPerPx, (cropLrLon - cropUlLon) / lonPerPx,
+                (cropUlLat - cropLrLat) / latPerPx, BUFFERS.image(width, height));
+        rasteredImgParams.put("raster_ul_lon", cropUlLon);
+        rasteredImgParams.put("raster_ul_lat", cropUlLat);
+        rasteredImgParams.put("raster_lr_lon", cropLrLon);
+        rasteredImgParams.put("raster_lr_lat", cropLrLat);
+        rasteredImgParams.put("raster_width", width);
+        rasteredImgParams.put("raster_height", height);
+        Metrics.RESAMPLE.recordSince(start);
+        return fitted;
+    }
+
+    /**
+     * Stream the raster as it is composited, instead of as a single Json response. The stream
+     * is multipart/mixed: first an application/json part holding the raster endpoint's response
+     * minus the image data, then one image/jpeg part per row of tiles, sent as soon as that row
+     * is composited and encoded. Each image part's X-Raster-Y header gives the strip's pixel
+     * offset from the top of the raster.
+     * <p>
+     * Strips are composited and encoded on the raster pool, a task per strip, and written out
+     * here, on the request thread, so a slow client holds no thread of the pool. The next
+     * strip is composited while one is written, so at most two are held at a time.
+     * </p>
+     */
+    private static void streamRaster(MapData d, HashMap<String, Double> rasterParams,
+                                     RouteOverlay route, Isochrone isochrone, OutputStream out)
+            throws Exception {
+        Map<String, Object> rasteredImgParams = new HashMap<>();
+        ArrayList<QuadTreeNode> tiles = getRasterTiles(rasterParams, rasteredImgParams);
+        int columns = (Integer) rasteredImgParams.get("raster_width") / TILE_SIZE;
+        int rows = tiles.size() / columns;
+        /* The time each strip spent drawing the route and the isochrone, recorded once for
+         * the raster. */
+        LongAdder[] drawNanos = {new LongAdder(), new LongAdder()};
+        /* Submitted before anything is written, so that a full pool is still answered with
+         * BUSY_RESPONSE rather than a broken stream. */
+        Future<byte[]> next = submitStrip(d, tiles, columns, 0, route, isochrone,
+                rasteredImgParams, drawNanos);
+        writeRasterStreamPart(out, "application/json", null,
+                GSON.toJson(rasteredImgParams).getBytes(StandardCharsets.UTF_8));
+        for (int row = 0; row < rows; row++) {
+            Future<byte[]> strip = next;
+            next = row + 1 < rows ? submitStrip(d, tiles, columns, row + 1, route, isochrone,
+                    rasteredImgParams, drawNanos) : null;
+            writeRasterStreamPart(out, "image/jpeg", "X-Raster-Y: " + row * TILE_SIZE,
+                    RequestExecutor.await(strip));
+        }
+        if (route != null) {
+            Metrics.ROUTE_DRAW.record(drawNanos[0].sum());
+        }
+        if (isochrone != null) {
+            Metrics.ISOCHRONE_DRAW.record(drawNanos[1].sum());
+        }
+        out.write(("--" + RASTER_STREAM_BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Composite and encode row <code>row</code> of a streamed raster on the raster pool. The
+     * first row answers BUSY_RESPONSE if the pool's queue is full; a later one is composited
+     * on the calling thread instead, since its response has already started.
+     */
+    private static Future<byte[]> submitStrip(MapData d, List<QuadTreeNode> tiles, int columns,
+                                              int row, RouteOverlay route, Isochrone isochrone,
+                                              Map<String, Object> rasteredImgParams,
+                                              LongAdder[] drawNanos)
+            throws Exception {
+        Callable<byte[]> strip = () -> getRasterStrip(d, tiles.subList(row * columns,
+                (row + 1) * columns), row * TILE_SIZE, route, isochrone, rasteredImgParams,
+                drawNanos);
+        try {
+            return EXECUTOR.submitCpu(strip);
+        } catch (RejectedExecutionException e) {
+            if (row == 0) {
+                Metrics.RASTER_REJECTED.increment();
+                halt(BUSY_RESPONSE, "Server busy - try again.");
+            }
+            return CompletableFuture.completedFuture(strip.call());
+        }
+    }
+
+    /**
+     * The JPEG of the strip of the raster holding <code>tiles</code>, a row of them whose top
+     * is <code>y</code> pixels from the top of the raster.
+     * @param drawNanos Adds up the time spent drawing the route and the isochrone, in order.
+     */
+    private static byte[] getRasterStrip(MapData d, List<QuadTreeNode> tiles, int y,
+                                         RouteOverlay route, Isochrone isochrone,
+                                         Map<String, Object> rasteredImgParams,
+                                         LongAdder[] drawNanos)
+            throws IOException {
+        BufferedImage strip = BUFFERS.image(tiles.size() * TILE_SIZE, TILE_SIZE);
+        try {
+            drawNanos[0].add(compositeTiles(d, tiles, strip, route));
+            if (isochrone != null) {
+                drawNanos[1].add(drawIsochrone(isochrone, strip, rasteredImgParams, y));
+            }
+            RasterBuffers.Bytes jpg = BUFFERS.jpegBuffer();
+            long start = System.nanoTime();
+            writeJpgToStream(strip, jpg);
+            Metrics.JPEG_ENCODE.recordSince(start);
+            return Arrays.copyOf(jpg.array(), jpg.size());
+        } finally {
+            BUFFERS.release(strip);
+        }
+    }
+
+    /**
+     * Write and flush one part of a streamed raster response.
+     */
+    private static void writeRasterStreamPart(OutputStream out, String type, String header,
+                                              byte[] body) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("--").append(RASTER_STREAM_BOUNDARY).append("\r\n");
+        head.append("Content-Type: ").append(type).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (header != null) {
+            head.append(header).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Answer a search request; see SEARCH_CENTER_PARAMS for the accepted parameters.
+     * @return The Json response, as a String or as cached UTF-8 bytes.
+     */
+    private static Object getSearchResponse(MapData d, spark.Request req) {
+        GraphDB graph = d.getGraph();
+        Set<String> reqParams = req.queryParams();
+        String term = req.queryParams("term");
+        /* If the client told us where it is looking, rank and limit by proximity. */
+        double[] center = getSearchCenter(req);
+        int limit = getSearchLimit(req);
+        /* Match whole words anywhere in the name, rather than the start of the name. */
+        if (reqParams.contains("words")) {
+            List<GraphNode> found = getLocationsByWords(graph, term, center, limit);
+            if (reqParams.contains("full")) {
+                List<Map<String, Object>> data = new LinkedList<>();
+                for (GraphNode curr : found) {
+                    data.add(getLocationInfo(curr));
+                }
+                return GSON.toJson(data);
+            }
+            LinkedHashSet<String> names = new LinkedHashSet<>();
+            for (GraphNode curr : found) {
+                names.add(curr.getName());
+            }
+            return GSON.toJson(new ArrayList<>(names));
+        }
+        /* Search for actual location data. */
+        if (reqParams.contains("full")) {
+            if (center != null) {
+                HashSet<GraphNode> matches =
+                        graph.getMaphandler().getPointsOfInterest().lookup(term);
+                if (matches == null) {
+                    return "[]";
+                }
+                List<GraphNode> nearest = rankCandidates(graph.getPoiIndex(), getCandidates(
+                        d, "full", term, center, limit,
+                        () -> matches.size() <= limit ? matches : null, matches::contains,
+                        n -> n), center, limit, n -> n);
+                List<Map<String, Object>> data = new ArrayList<>();
+                for (GraphNode n : nearest) {
+                    data.add(getLocationInfo(n));
+                }
+                return GSON.toJson(data);
+            }
+            return d.getLocationCache().get(GraphDB.cleanString(term),
+                    name -> toJsonBytes(getLocations(graph, name)));
+        } else {
+            /* Search for prefix matching strings. */
+            String prefix = GraphDB.cleanString(term);
+            if (prefix.length() <= PRECOMPUTED_PREFIX_LENGTH
+                    && !d.getPrefixCache().isPrecomputed(prefix)) {
+                /* Every short prefix that matches anything was precomputed. */
+                return "[]";
+            }
+            if (center != null) {
+                List<GraphNode> nearest = rankCandidates(graph.getPoiIndex(), getCandidates(d,
+                        "prefix", term, center, limit, () -> {
+                            List<String> names = getLocationsByPrefix(graph, prefix);
+                            if (names == null || names.size() > limit) {
+                                return names == null ? Collections.emptyList() : null;
+                            }
+                            /* Few enough names to rank each one by all its locations. */
+                            List<GraphNode> all = new ArrayList<>();
+                            for (String name : names) {
+                                all.addAll(graph.getMaphandler().getPointsOfInterest()
+                                        .lookup(name));
+                            }
+                            return all;
+                        }, n -> n.getCleanName().startsWith(prefix), GraphNode::getName),
+                        center, limit, GraphNode::getName);
+                List<String> found = new ArrayList<>();
+                for (GraphNode n : nearest) {
+                    found.add(n.getName());
+                }
+                return GSON.toJson(found);
+            }
+            return d.getPrefixCache().get(prefix,
+                    p -> toJsonBytes(getLocationsByPrefix(graph, p)));
+        }
+    }
+
+    /**
+     * Return the candidates of a search ranked around <code>center</code> for the first
+     * <code>limit</code> groups of matches: every match that could rank among them around any
+     * point of the SEARCH_CELL_DEGREES cell holding <code>center</code>. They are the matches
+     * of the POI index nearest the cell's center, out to SEARCH_CELL_REACH beyond the one
+     * completing <code>limit</code> groups; the cell's candidates are cached by the kind of
+     * search, the limit, the cell and the cleaned term.
+     * @param few Every match, if they are few enough to all be taken as the candidates; else
+     *            null. Only asked for on a miss.
+     * @param match Accepts the index's nodes that match.
+     * @param group The match a node is ranked as: the node itself, or its name.
+     */
+    private static List<GraphNode> getCandidates(MapData d, String kind, String term,
+                                                 double[] center, int limit,
+                                                 Supplier<Collection<GraphNode>> few,
+                                                 Predicate<GraphNode> match,
+                                                 Function<GraphNode, Object> group) {
+        long column = (long) Math.floor(center[0] / SEARCH_CELL_DEGREES);
+        long row = (long) Math.floor(center[1] / SEARCH_CELL_DEGREES);
+        String key = kind + ' ' + limit + ' ' + column + ' ' + row + ' '
+                + GraphDB.cleanString(term);
+        return d.getRankedCache().get(key, k -> {
+            Collection<GraphNode> all = few.get();
+            if (all != null) {
+                return new ArrayList<>(all);
+            }
+            PointIndex index = d.getGraph().getPoiIndex();
+            double lon = (column + 0.5) * SEARCH_CELL_DEGREES;
+            double lat = (row + 0.5) * SEARCH_CELL_DEGREES;
+            List<GraphNode> candidates = new ArrayList<>();
+            Set<Object> groups = new HashSet<>();
+            double[] reach = {Double.POSITIVE_INFINITY};
+            index.visitNearest(lon, lat, match, n -> {
+                double distance = index.distance(n, lon, lat);
+                if (distance > reach[0]) {
+                    return false;
+                }
+                candidates.add(n);
+                if (groups.add(group.apply(n)) && groups.size() == limit) {
+                    reach[0] = distance + SEARCH_CELL_REACH;
+                }
+                return true;
+            });
+            return candidates;
+        });
+    }
+
+    /**
+     * Return the candidates of a search nearest <code>center</code>, the nearest of each
+     * <code>group</code> standing for its group, closest first; at most <code>limit</code>.
+     */
+    private static List<GraphNode> rankCandidates(PointIndex index, List<GraphNode> candidates,
+                                                  double[] center, int limit,
+                                                  Function<GraphNode, Object> group) {
+        List<GraphNode> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparingDouble(n -> index.distance(n, center[0], center[1])));
+        Set<Object> groups = new HashSet<>();
+        List<GraphNode> nearest = new ArrayList<>();
+        for (GraphNode n : sorted) {
+            if (nearest.size() == limit) {
+                break;
+            }
+            if (groups.add(group.apply(n))) {
+                nearest.add(n);
+            }
+        }
+        return nearest;
+    }
+
     /**
      * Check if the computed parameter map matches the required parameters on length.
      */
@@ -196,6 +947,124 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Return the routing profile named by the profile parameter, or DEFAULT_ROUTE_PROFILE.
+     */
+    private static int getRouteProfile(spark.Request req) {
+        return getRouteProfile(req, "profile", DEFAULT_ROUTE_PROFILE);
+    }
+
+    /**
+     * Return the routing profile named by the parameter <code>param</code>, or
+     * <code>otherwise</code> if it is not given.
+     */
+    private static int getRouteProfile(spark.Request req, String param, int otherwise) {
+        String name = req.queryParams(param);
+        if (name == null) {
+            return otherwise;
+        }
+        int profile = RoadGraph.profile(name);
+        if (profile < 0) {
+            halt(HALT_RESPONSE, "Unknown routing profile.");
+        }
+        return profile;
+    }
+
+    /**
+     * Return the {lon, lat} point a search should be ranked around, taken from the lat/lon
+     * parameters or else from the center of the viewport parameters; null if neither is given.
+     */
+    private static double[] getSearchCenter(spark.Request req) {
+        HashMap<String, Double> center = getRequestParams(req, SEARCH_CENTER_PARAMS);
+        if (hasRequestParameters(center, SEARCH_CENTER_PARAMS)) {
+            return new double[]{center.get("lon"), center.get("lat")};
+        }
+        HashMap<String, Double> viewport = getRequestParams(req, SEARCH_VIEWPORT_PARAMS);
+        if (hasRequestParameters(viewport, SEARCH_VIEWPORT_PARAMS)) {
+            return new double[]{(viewport.get("ullon") + viewport.get("lrlon")) / 2,
+                (viewport.get("ullat") + viewport.get("lrlat")) / 2};
+        }
+        return null;
+    }
+
+    /**
+     * Return the requested result limit for a proximity-ranked search.
+     */
+    private static int getSearchLimit(spark.Request req) {
+        return getIntParam(req, "limit", DEFAULT_SEARCH_LIMIT);
+    }
+
+    /**
+     * Return the positive integer parameter <code>name</code>, or <code>otherwise</code> if
+     * it is not given.
+     */
+    private static int getIntParam(spark.Request req, String name, int otherwise) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return otherwise;
+        }
+    }
+
+    /**
+     * Return the integer parameter <code>name</code>, or null if it is not given.
+     */
+    private static Long getLongParam(spark.Request req, String name) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return null;
+        }
+    }
+
+    /**
+     * Return the number parameter <code>name</code>, or <code>otherwise</code> if it is not
+     * given.
+     */
+    private static double getDoubleParam(spark.Request req, String name, double otherwise) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return otherwise;
+        }
+    }
+
+    /**
+     * Every distinct cleaned prefix, up to PRECOMPUTED_PREFIX_LENGTH long, of a location name.
+     */
+    private static Set<String> getShortPrefixes(GraphDB graph) {
+        HashSet<String> prefixes = new HashSet<>();
+        for (GraphNode n : graph.getMaphandler().getNamedNodes()) {
+            String clean = n.getCleanName();
+            for (int i = 1; i <= Math.min(PRECOMPUTED_PREFIX_LENGTH, clean.length()); i++) {
+                prefixes.add(clean.substring(0, i));
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Serialize a response to UTF-8 Json bytes, the form kept in the search caches.
+     */
+    private static byte[] toJsonBytes(Object response) {
+        return GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Write a <code>BufferedImage</code> to an <code>OutputStream</code>. The image is written as
      * a lossy JPG, but with the highest quality possible.
@@ -229,6 +1098,9 @@ public class MapServer {
      *         above condition.</li>
      *         <li>The tiles must be arranged in-order to reconstruct the full image.</li>
      *     </ul>
+     *     Below QuadTree.TILE_DEPTH, down to QuadTree.MAX_DEPTH, the tiles are upsampled from
+     *     the deepest tiles on disk by OverzoomTiles; route overlays are still drawn per tile,
+     *     so they stay sharp.
      *     Additional image about the raster is returned and is to be included in the Json response.
      * </p>
      * @param inputParams Map of the HTTP GET request's query parameters - the query bounding box
@@ -246,18 +1118,59 @@ public class MapServer {
      * @return a <code>BufferedImage</code>, which is the rastered result.
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
-
-    //instance variable for lazy loading
-    private static HashMap<String, BufferedImage> buffered = new HashMap<>();
-
     public static BufferedImage getMapRaster(Map<String, Double> inputParams,
                                              Map<String, Object> rasteredImageParams) {
+        return getMapRaster(data, inputParams, rasteredImageParams, null);
+    }
+
+    /**
+     * Like getMapRaster, but from the tiles of <code>d</code>, and with the overlay tiles of
+     * <code>route</code> composited over the map tiles, if a route is given.
+     */
+    static BufferedImage getMapRaster(MapData d, Map<String, Double> inputParams,
+                                      Map<String, Object> rasteredImageParams,
+                                      RouteOverlay route) {
+        return getMapRaster(d, getRasterTiles(inputParams, rasteredImageParams),
+                rasteredImageParams, route);
+    }
+
+    /**
+     * Composite <code>images</code>, as queried by getRasterTiles along with
+     * <code>rasteredImageParams</code>, into the raster, with the overlay tiles of
+     * <code>route</code> over them if a route is given.
+     */
+    private static BufferedImage getMapRaster(MapData d, List<QuadTreeNode> images,
+                                              Map<String, Object> rasteredImageParams,
+                                              RouteOverlay route) {
+        //http://stackoverflow.com/questions/3922276/
+        // how-to-combine-multiple-pngs-into-one-big-png-file
+
+        BufferedImage result = BUFFERS.image((Integer) rasteredImageParams.get("raster_width"),
+                (Integer) rasteredImageParams.get("raster_height"));
+        long routeNanos = compositeTiles(d, images, result, route);
+        if (route != null) {
+            Metrics.ROUTE_DRAW.record(routeNanos);
+        }
+        return result;
+    }
+
+    /**
+     * Query the tiles to be rastered for the request, in row-major order, and put the raster's
+     * bounds, size, depth and success into <code>rasteredImageParams</code>, as described at
+     * getMapRaster.
+     */
+    private static ArrayList<QuadTreeNode> getRasterTiles(
+            Map<String, Double> inputParams, Map<String, Object> rasteredImageParams) {
+        long start = System.nanoTime();
         QuadTree t = new QuadTree();
+        Metrics.QUADTREE_BUILD.recordSince(start);
+        start = System.nanoTime();
         Double resolution = Math.abs((inputParams.get("ullon")
                 - inputParams.get("lrlon")) / inputParams.get("w"));
         ArrayList<QuadTreeNode> images = t.raster(inputParams.get("ullon"),
                 inputParams.get("lrlon"), inputParams.get("ullat"),
                 inputParams.get("lrlat"), resolution);
+        Metrics.QUADTREE_QUERY.recordSince(start);
         int width = (int) Math.round((Math.abs(images.get(0).getUpperLeft()[0]
                 - images.get(images.size() - 1).getLowerRight()[0])
                 / images.get(0).getPixelDistLong()));
@@ -275,30 +1188,59 @@ public class MapServer {
         rasteredImageParams.put("depth", images.get(0).getFileName().length());
         rasteredImageParams.put("query_success", true);
 
-        //http://stackoverflow.com/questions/3922276/
-        // how-to-combine-multiple-pngs-into-one-big-png-file
-
-        BufferedImage result = new BufferedImage(
-                width, height, //work these out
-                BufferedImage.TYPE_INT_RGB);
-        Graphics d = result.getGraphics();
+        return images;
+    }
 
+    /**
+     * Draw <code>tiles</code>, given in row-major order, edge to edge onto <code>im</code>,
+     * wrapping to the next row at the image's width. If a route is given, its overlay tiles
+     * are drawn over the map tiles.
+     * @return The nanoseconds spent drawing the route, its overlay tiles rendered if need be.
+     */
+    private static long compositeTiles(MapData mapData, List<QuadTreeNode> tiles,
+                                       BufferedImage im, RouteOverlay route) {
+        Graphics d = im.getGraphics();
         int x = 0;
         int y = 0;
+        long compositeNanos = 0;
+        long routeNanos = 0;
+        long start;
 
-        for (QuadTreeNode curr : images) {
-            String path = "img/" + curr.getFileName() + ".png";
-//            InputStream in = InputStream.class.getClassLoader().getResourceAsStream(path);
-            BufferedImage bi  = getImageStream(path);
-//            BufferedImage bi = getImage(path);
-            d.drawImage(bi, x, y, null);
+        TileSlabCache cache = mapData.getTileCache();
+        for (QuadTreeNode curr : tiles) {
+            start = System.nanoTime();
+            if (!cache.drawCached(curr.getFileName(), im, x, y)) {
+                compositeNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                BufferedImage bi = getImageStream(mapData, curr.getFileName());
+                Metrics.TILE_DECODE.recordSince(start);
+                start = System.nanoTime();
+                if (bi != null) {
+                    cache.draw(curr.getFileName(), bi, im, x, y);
+                } else {
+                    /* The image may be pooled, and hold another raster's pixels. */
+                    d.setColor(Color.BLACK);
+                    d.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+                }
+            }
+            if (route != null) {
+                long drawStart = System.nanoTime();
+                BufferedImage overlay = mapData.getRouteTiles().tile(route, curr);
+                if (overlay != null) {
+                    d.drawImage(overlay, x, y, null);
+                }
+                routeNanos += System.nanoTime() - drawStart;
+            }
+            compositeNanos += System.nanoTime() - start;
             x += 256;
-            if (x >= result.getWidth()) {
+            if (x >= im.getWidth()) {
                 x = 0;
-                y += bi.getHeight();
+                y += TILE_SIZE;
             }
         }
-        return result;
+        Metrics.COMPOSITE.record(compositeNanos);
+        Metrics.TILES_COMPOSITED.add(tiles.size());
+        return routeNanos;
     }
 
     /**
@@ -319,116 +1261,262 @@ public class MapServer {
     public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
                                               Map<String, Object> rasterImageParams,
                                               BufferedImage im) {
-        Double distanceToStart = Double.MAX_VALUE;
-        Double distanceToEnd = Double.MAX_VALUE;
-        GraphNode start = null;
-        GraphNode end = null;
+        GraphDB graph = data.getGraph();
+        GraphNode[] endpoints = getRouteEndpoints(graph, routeParams, RoadGraph.DISTANCE);
+        if (endpoints == null) {
+            return new ArrayList<>();
+        }
+        List<Long> path = timedShortestPath(graph, endpoints[0], endpoints[1],
+                RoadGraph.DISTANCE);
+        Graphics2D currGraphic = null;
+        if (im != null) {
+            long startNanos = System.nanoTime();
+            currGraphic = (Graphics2D) im.getGraphics();
+            new RouteOverlay(RouteTiles.routeId(endpoints[0], endpoints[1], RoadGraph.DISTANCE),
+                    path,
+                    graph.getMaphandler().getNodeMap()).draw(currGraphic,
+                    (Integer) rasterImageParams.get("raster_width"),
+                    (Integer) rasterImageParams.get("raster_height"),
+                    (Double) rasterImageParams.get("raster_ul_lon"),
+                    (Double) rasterImageParams.get("raster_ul_lat"),
+                    (Double) rasterImageParams.get("raster_lr_lon"),
+                    (Double) rasterImageParams.get("raster_lr_lat"));
+            Metrics.ROUTE_DRAW.recordSince(startNanos);
+        }
 
-        for (Long key: g.getMaphandler().getNodeMap().keySet()) {
-            GraphNode curr = g.getMaphandler().getNodeMap().get(key);
+        return path;
+    }
 
-            Double currStartDistance =
-                    curr.getDistanceTo(routeParams.get("start_lon"),
-                            routeParams.get("start_lat"));
-            Double currEndDistance =
-                    curr.getDistanceTo(routeParams.get("end_lon"),
-                            routeParams.get("end_lat"));
+    /**
+     * Return the route under <code>profile</code> between the nodes closest to the requested
+     * start and end points, from the route cache if it has been asked for recently; null if no
+     * route was requested, or none can be. The endpoints are found on the raster pool.
+     */
+    private static RouteOverlay getCachedRoute(MapData d, HashMap<String, Double> routeParams,
+                                               int profile) throws Exception {
+        if (!hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
+            return null;
+        }
+        return getCachedRoute(d, (GraphNode[]) runCpuOrBusy(() ->
+                getRouteEndpoints(d.getGraph(), routeParams, profile)), profile);
+    }
 
-            if (currStartDistance < distanceToStart) {
-                start = curr;
-                distanceToStart = currStartDistance;
-            }
+    /**
+     * Like getCachedRoute, for the given snapped endpoints, or null if they are null. On a
+     * miss, concurrent requests for the same route share one shortest path search, run on the
+     * raster pool; requests waiting on it wait on their own thread. Call it from the request
+     * thread, not from work already on the pool.
+     */
+    private static RouteOverlay getCachedRoute(MapData d, GraphNode[] endpoints, int profile)
+            throws Exception {
+        if (endpoints == null) {
+            return null;
+        }
+        GraphDB graph = d.getGraph();
+        String routeId = RouteTiles.routeId(endpoints[0], endpoints[1], profile);
+        RouteOverlay cached = d.getRouteTiles().route(routeId);
+        if (cached != null) {
+            return cached;
+        }
+        return ROUTE_FLIGHTS.run(d.getVersion() + "/" + routeId, () -> {
+            RouteOverlay route = (RouteOverlay) runCpuOrBusy(() -> new RouteOverlay(routeId,
+                    timedShortestPath(graph, endpoints[0], endpoints[1], profile),
+                    graph.getMaphandler().getNodeMap()));
+            d.getRouteTiles().addRoute(route);
+            return route;
+        });
+    }
 
-            if (currEndDistance < distanceToEnd) {
-                end = curr;
-                distanceToEnd = currEndDistance;
+    /**
+     * Find up to <code>k</code> meaningfully different routes under <code>profile</code>
+     * between the nodes closest to the requested start and end points, the shortest first;
+     * see Router.alternatives. There are none if the graph has no routable node to start or
+     * end at.
+     * @param startId The OSM id of the node to start from instead, or null.
+     * @return Each route as a map for the Json response:<br>
+     * "ids" -> List, the node ids of the route, in order.<br>
+     * "length" -> Number, the length of the route in metres.<br>
+     * "weight" -> Number, the route's cost under the profile: metres for "distance", seconds
+     * for the others.
+     */
+    private static List<Map<String, Object>> getAlternativeRoutes(
+            GraphDB graph, Map<String, Double> routeParams, Long startId, int profile, int k) {
+        GraphNode[] endpoints = getRouteEndpoints(graph, routeParams, profile);
+        List<Map<String, Object>> results = new ArrayList<>();
+        if (endpoints == null) {
+            return results;
+        }
+        Router router = graph.getRouter();
+        if (startId != null) {
+            endpoints[0] = graph.getMaphandler().getNodeMap().get(startId);
+            if (endpoints[0] == null || endpoints[0].getIndex() < 0
+                    || !router.getGraph().isRoutable(profile, endpoints[0].getIndex())) {
+                return results;
             }
         }
-
-        Graphics2D currGraphic = null; 
-        List<Long> path = MapServer.shortestPath(start, end);
-        if (im != null) {
-            currGraphic = (Graphics2D) im.getGraphics();
-            currGraphic.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            currGraphic.setColor(ROUTE_STROKE_COLOR);
-            Double xStandard = (Double) rasterImageParams.get("raster_ul_lon");
-            Double yStandard = (Double) rasterImageParams.get("raster_ul_lat");
-            Double xPixelDistance = Math.abs((Double) rasterImageParams.get("raster_lr_lon")
-                    - (Double) rasterImageParams.get("raster_ul_lon"))
-                    / ((Integer) rasterImageParams.get("raster_width")).doubleValue();
-            Double yPixelDistance = Math.abs((Double) rasterImageParams.get("raster_lr_lat")
-                    - (Double) rasterImageParams.get("raster_ul_lat"))
-                    / ((Integer) rasterImageParams.get("raster_height")).doubleValue();
-
-            for (int i = 0; i < path.size() - 1; i++) {
-                GraphNode curr = g.getMaphandler().getNodeMap().get(path.get(i));
-                GraphNode next = g.getMaphandler().getNodeMap().get(path.get(i + 1));
-                int x1 = (int) ((curr.getLoc()[0] - xStandard) / xPixelDistance);
-                int y1 = (int) ((yStandard - curr.getLoc()[1]) / yPixelDistance);
-                int x2 = (int) ((next.getLoc()[0] - xStandard) / xPixelDistance);
-                int y2 = (int) ((yStandard - next.getLoc()[1]) / yPixelDistance);
-                currGraphic.drawLine(x1, y1, x2, y2);
+        long start = System.nanoTime();
+        List<int[]> routes = router.alternatives(endpoints[0].getIndex(),
+                endpoints[1].getIndex(), profile, k, ALTERNATIVE_MAX_OVERLAP, ALTERNATIVE_BUDGET);
+        Metrics.ALTERNATIVE_ROUTES.recordSince(start);
+        for (int[] route : routes) {
+            List<Long> ids = new ArrayList<>();
+            for (int v : route) {
+                ids.add(router.getGraph().id(v));
             }
-
+            Map<String, Object> info = new HashMap<>();
+            info.put("ids", ids);
+            info.put("length", router.length(route));
+            info.put("weight", router.weight(route, profile));
+            results.add(info);
         }
+        return results;
+    }
+
+    /**
+     * closestNodes, recorded in the nearest-node metrics; null if the graph has no routable
+     * node to start or end at.
+     */
+    private static GraphNode[] getRouteEndpoints(GraphDB graph, Map<String, Double> routeParams,
+                                                 int profile) {
+        long start = System.nanoTime();
+        GraphNode[] endpoints = closestNodes(graph, routeParams, profile);
+        Metrics.NEAREST_NODE.recordSince(start);
+        return endpoints[0] == null || endpoints[1] == null ? null : endpoints;
+    }
 
+    /**
+     * shortestPath, recorded in the shortest-path metrics.
+     */
+    private static List<Long> timedShortestPath(GraphDB graph, GraphNode start, GraphNode end,
+                                                int profile) {
+        long startNanos = System.nanoTime();
+        List<Long> path = shortestPath(graph, start, end, profile);
+        Metrics.SHORTEST_PATH.recordSince(startNanos);
         return path;
     }
 
-    private static ArrayList<Long> shortestPath(GraphNode start, GraphNode end) {
-
-        HashMap<GraphNode, GraphNode> prev = new HashMap<>();
-        HashMap<Long, Double> shortestPath = new HashMap<>();
-        HashSet<Long> visited = new HashSet<>();
-
-        PriorityQueue<GraphNode> fringe = new PriorityQueue<>((g1, g2) -> {
-            return Double.compare(shortestPath.get(g1.getID())
-                    + g1.getDistanceTo(end.getLoc()[0], end.getLoc()[1]),
-                    shortestPath.get(g2.getID())
-                            + g2.getDistanceTo(end.getLoc()[0], end.getLoc()[1]));
-        }); //define lambda comparator on shortestPath.get(node) + h(n)
-
-
-        fringe.add(start);
-        shortestPath.put(start.getID(), 0.0);
-
-        while (!fringe.isEmpty()) {
-            GraphNode curr = fringe.poll();
-            if (curr == end) break;
-            if (!visited.contains(curr.getID())) {
-                visited.add(curr.getID());
-                HashSet<Connection> currConnections = curr.getConnections();
-                for (Connection c : currConnections) {
-                    GraphNode currEnd = g.getMaphandler().getNodeMap().get(c.to());
-                    Double gN = shortestPath.get(curr.getID()) + c.getDistance();
-                    if (!visited.contains(c.to())) {
-                        if (shortestPath.get(c.to()) == null) {
-                            prev.put(currEnd, curr);
-                            shortestPath.put(c.to(), gN);
-                            fringe.add(currEnd);
-                        } else {
-                            if (shortestPath.get(c.to()) > gN) {
-                                prev.put(currEnd, curr);
-                                shortestPath.put(c.to(), gN);
-                                fringe.add(currEnd);
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * Find the nodes of <code>graph</code> closest to the route's start and end points among
+     * those routable under <code>profile</code>, so that a route between them always exists.
+     * Closeness is ground distance, found with the graph's road index.
+     * @param routeParams Params as described in REQUIRED_ROUTE_REQUEST_PARAMS.
+     * @return {start node, end node}.
+     */
+    static GraphNode[] closestNodes(GraphDB graph, Map<String, Double> routeParams,
+                                    int profile) {
+        return new GraphNode[]{
+            closestNode(graph, routeParams.get("start_lon"), routeParams.get("start_lat"),
+                    profile),
+            closestNode(graph, routeParams.get("end_lon"), routeParams.get("end_lat"), profile)};
+    }
+
+    /**
+     * Find the node of <code>graph</code> closest to (lon, lat) among those routable under
+     * <code>profile</code>; null if there is none.
+     */
+    static GraphNode closestNode(GraphDB graph, double lon, double lat, int profile) {
+        RoadGraph roads = graph.getRouter().getGraph();
+        Predicate<GraphNode> routable = n -> roads.isRoutable(profile, n.getIndex());
+        List<GraphNode> nearest = graph.getRoadIndex().nearest(lon, lat, 1, routable);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * Find everything reachable within <code>limit</code> under <code>profile</code> from the
+     * node closest to (lon, lat); see Router.reachable. Nothing is reachable if the graph has
+     * no routable node to start from.
+     */
+    static Isochrone getIsochrone(GraphDB graph, double lon, double lat, double limit,
+                                  int profile) {
+        long start = System.nanoTime();
+        GraphNode from = closestNode(graph, lon, lat, profile);
+        Metrics.NEAREST_NODE.recordSince(start);
+        if (from == null) {
+            return new Isochrone(graph.getRouter().getGraph(), new int[0], new int[0],
+                    new float[0]);
+        }
+        start = System.nanoTime();
+        Isochrone isochrone = graph.getRouter().reachable(from.getIndex(), profile, limit);
+        Metrics.ISOCHRONE.recordSince(start);
+        return isochrone;
+    }
+
+    /**
+     * The isochrone a raster request asked to have drawn, or null if it asked for none.
+     */
+    private static Isochrone getRasterIsochrone(MapData d, HashMap<String, Double> isoParams,
+                                                int profile) {
+        if (!hasRequestParameters(isoParams, RASTER_ISOCHRONE_PARAMS)) {
+            return null;
         }
+        return getIsochrone(d.getGraph(), isoParams.get("iso_lon"), isoParams.get("iso_lat"),
+                getIsochroneLimit(isoParams.get("iso_limit"), profile), profile);
+    }
+
+    /**
+     * The isochrone limit requested, capped at the profile's MAX_ISOCHRONE_LIMITS.
+     */
+    private static double getIsochroneLimit(double limit, int profile) {
+        return Math.max(0, Math.min(MAX_ISOCHRONE_LIMITS[profile], limit));
+    }
 
+    /**
+     * The isochrone response, a GeoJSON Feature: a MultiPolygon geometry with the properties
+     * profile, limit, reached (the number of nodes reached) and cell_metres (the resolution
+     * the outline was traced at).
+     */
+    private static Map<String, Object> getIsochroneFeature(Isochrone isochrone, double limit,
+                                                           int profile) {
+        Map<String, Object> geometry = new HashMap<>();
+        geometry.put("type", "MultiPolygon");
+        geometry.put("coordinates", isochrone.getCoordinates());
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("profile", RoadGraph.profileName(profile));
+        properties.put("limit", limit);
+        properties.put("reached", isochrone.size());
+        properties.put("cell_metres", isochrone.getCellMetres());
+        Map<String, Object> feature = new HashMap<>();
+        feature.put("type", "Feature");
+        feature.put("geometry", geometry);
+        feature.put("properties", properties);
+        return feature;
+    }
+
+    /**
+     * Draw <code>isochrone</code> onto <code>im</code>, a strip of the raster described by
+     * <code>rasterImageParams</code> starting <code>top</code> pixels below its top edge.
+     * @return The nanoseconds it took.
+     */
+    private static long drawIsochrone(Isochrone isochrone, BufferedImage im,
+                                      Map<String, Object> rasterImageParams, int top) {
+        long start = System.nanoTime();
+        double ulLat = (Double) rasterImageParams.get("raster_ul_lat");
+        double lrLat = (Double) rasterImageParams.get("raster_lr_lat");
+        double latPerPx = (ulLat - lrLat) / (Integer) rasterImageParams.get("raster_height");
+        isochrone.draw((Graphics2D) im.getGraphics(), im.getWidth(), im.getHeight(),
+                (Double) rasterImageParams.get("raster_ul_lon"), ulLat - top * latPerPx,
+                (Double) rasterImageParams.get("raster_lr_lon"),
+                ulLat - (top + im.getHeight()) * latPerPx);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Find the lowest-weight route from <code>start</code> to <code>end</code> under
+     * <code>profile</code>, one of the RoadGraph profiles, with A* over the graph's Router.
+     * @return The node ids of the route, from start to end; empty if <code>end</code> cannot
+     * be reached from <code>start</code>.
+     */
+    static ArrayList<Long> shortestPath(GraphDB graph, GraphNode start, GraphNode end,
+                                        int profile) {
+        Router router = graph.getRouter();
+        int[] nodes = router.shortestPath(start.getIndex(), end.getIndex(), profile);
         ArrayList<Long> path = new ArrayList<>();
-        path.add(end.getID());
-        GraphNode next = end;
-        while (!Objects.equals(next.getID(), start.getID())) {
-            next = prev.get(next);
-            path.add(0, next.getID());
+        if (nodes != null) {
+            for (int v : nodes) {
+                path.add(router.getGraph().id(v));
+            }
         }
         return path;
-
-
     }
 
     /**
@@ -439,7 +1527,11 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return g.getMaphandler().getPointsOfInterest().lookupPrefix(prefix);
+        return getLocationsByPrefix(data.getGraph(), prefix);
+    }
+
+    private static List<String> getLocationsByPrefix(GraphDB graph, String prefix) {
+        return graph.getMaphandler().getPointsOfInterest().lookupPrefix(prefix);
     }
 
     /**
@@ -455,43 +1547,184 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
+        return getLocations(data.getGraph(), locationName);
+    }
+
+    private static List<Map<String, Object>> getLocations(GraphDB graph, String locationName) {
         List<Map<String, Object>> results = new LinkedList<>();
-        for (GraphNode curr: g.getMaphandler().getPointsOfInterest().lookup(locationName)) {
-            HashMap<String, Object> currInfo = new HashMap<>();
-            currInfo.put("lat", curr.getLoc()[1]);
-            currInfo.put("lon", curr.getLoc()[0]);
-            currInfo.put("name", curr.getName());
-            currInfo.put("id", curr.getID()); //longValue for formatting reasons
-            results.add(currInfo);
+        for (GraphNode curr: graph.getMaphandler().getPointsOfInterest().lookup(locationName)) {
+            results.add(getLocationInfo(curr));
         }
         return results;
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage bi = null;
-        if (buffered.containsKey(imgPath)) {
-            bi = buffered.get(imgPath);
+    /**
+     * Like getLocations, but only the <code>limit</code> matches closest to (lon, lat) are
+     * returned, closest first. Large match sets (chain stores) are pruned with the POI index
+     * rather than sorted in full.
+     * @param graph Graph to search.
+     * @param locationName A full name of a location searched for.
+     * @param lon Longitude to rank around.
+     * @param lat Latitude to rank around.
+     * @param limit Maximum number of locations returned.
+     * @return The closest matching locations, in the format of getLocations.
+     */
+    public static List<Map<String, Object>> getLocationsNear(GraphDB graph, String locationName,
+                                                             double lon, double lat, int limit) {
+        List<Map<String, Object>> results = new LinkedList<>();
+        HashSet<GraphNode> matches =
+                graph.getMaphandler().getPointsOfInterest().lookup(locationName);
+        if (matches == null) {
+            return results;
+        }
+        List<GraphNode> nearest;
+        if (matches.size() <= limit) {
+            nearest = new ArrayList<>(matches);
+            PointIndex index = graph.getPoiIndex();
+            nearest.sort(Comparator.comparingDouble(n -> index.distance(n, lon, lat)));
         } else {
-            try {
-                bi = ImageIO.read(new File(imgPath));
-                buffered.put(imgPath, bi);
-            } catch (IOException e) {
-                e.printStackTrace();
+            nearest = graph.getPoiIndex().nearest(lon, lat, limit, matches::contains);
+        }
+        for (GraphNode curr : nearest) {
+            results.add(getLocationInfo(curr));
+        }
+        return results;
+    }
+
+    /**
+     * Like getLocationsByPrefix, but returns at most <code>limit</code> names, ordered by the
+     * distance from (lon, lat) to the closest location carrying each name.
+     * @param graph Graph to search.
+     * @param prefix Prefix string to be searched for.
+     * @param lon Longitude to rank around.
+     * @param lat Latitude to rank around.
+     * @param limit Maximum number of names returned.
+     * @return The full names of the closest prefix-matching locations.
+     */
+    public static List<String> getLocationsByPrefixNear(GraphDB graph, String prefix, double lon,
+                                                        double lat, int limit) {
+        List<String> names = getLocationsByPrefix(graph, prefix);
+        if (names == null) {
+            return new ArrayList<>();
+        }
+        if (names.size() <= limit) {
+            /* Few enough names to rank each one by its closest location directly. */
+            HashMap<String, Double> closest = new HashMap<>();
+            for (String name : names) {
+                double best = Double.MAX_VALUE;
+                for (GraphNode n : graph.getMaphandler().getPointsOfInterest().lookup(name)) {
+                    best = Math.min(best, graph.getPoiIndex().distance(n, lon, lat));
+                }
+                closest.put(name, best);
             }
+            names.sort(Comparator.comparingDouble(closest::get));
+            return names;
         }
-        return bi;
+        /* Otherwise walk outwards from the center until enough distinct names are seen. */
+        String clean = GraphDB.cleanString(prefix);
+        LinkedHashSet<String> found = new LinkedHashSet<>();
+        graph.getPoiIndex().visitNearest(lon, lat, n -> n.getCleanName().startsWith(clean), n -> {
+            found.add(n.getName());
+            return found.size() < limit;
+        });
+        return new ArrayList<>(found);
     }
 
-        private static BufferedImage getImageStream(String imgPath) {
-            InputStream in = null;
-            try {
-                in = MapServer.class.getClassLoader().getResourceAsStream(imgPath);
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Collect the named locations around (lon, lat), closest first, with the POI index: at most
+     * <code>limit</code> of them, and only those within <code>radius</code> metres, and whose
+     * cleaned name starts with the cleaned <code>prefix</code> if one is given. With a limit
+     * of one, this is the reverse geocode of the point.
+     * @return The locations in the format of getLocations, each with the additional key<br>
+     * "distance" -> Number, the ground distance from (lon, lat) in metres.
+     */
+    public static List<Map<String, Object>> getLocationsAround(GraphDB graph, double lon,
+                                                               double lat, int limit,
+                                                               double radius, String prefix) {
+        PointIndex index = graph.getPoiIndex();
+        double maxDistance = radius / RoadGraph.METRES_PER_DEGREE;
+        String clean = prefix == null ? "" : GraphDB.cleanString(prefix);
+        List<Map<String, Object>> results = new ArrayList<>();
+        if (!clean.isEmpty()) {
+            /* A rare prefix would have the index walk every cell looking for more matches;
+             * few enough locations are ranked directly instead. */
+            Trie names = graph.getMaphandler().getPointsOfInterest();
+            List<GraphNode> matching = new ArrayList<>();
+            for (String name : names.lookupPrefix(clean, DIRECT_RANK_LOCATIONS + 1)) {
+                matching.addAll(names.lookup(name));
+                if (matching.size() > DIRECT_RANK_LOCATIONS) {
+                    break;
+                }
+            }
+            if (matching.size() <= DIRECT_RANK_LOCATIONS) {
+                matching.sort(Comparator.comparingDouble(n -> index.distance(n, lon, lat)));
+                for (GraphNode n : matching) {
+                    double distance = index.distance(n, lon, lat);
+                    if (distance > maxDistance || results.size() == limit) {
+                        break;
+                    }
+                    Map<String, Object> info = getLocationInfo(n);
+                    info.put("distance", distance * RoadGraph.METRES_PER_DEGREE);
+                    results.add(info);
+                }
+                return results;
             }
+        }
+        index.visitNearest(lon, lat, n -> n.getCleanName().startsWith(clean), n -> {
+            double distance = index.distance(n, lon, lat);
+            if (distance > maxDistance) {
+                return false;
+            }
+            Map<String, Object> info = getLocationInfo(n);
+            info.put("distance", distance * RoadGraph.METRES_PER_DEGREE);
+            results.add(info);
+            return results.size() < limit;
+        });
+        return results;
+    }
 
+    /**
+     * Collect the locations whose name contains every word of <code>query</code>, the last word
+     * matched as a prefix. If a center is given, only the <code>limit</code> matches closest to
+     * it are returned, closest first.
+     * @param graph Graph to search.
+     * @param query Words to be searched for. Could be any case, with or without punctuation.
+     * @param center {lon, lat} to rank around, or null to return every match.
+     * @param limit Maximum number of locations returned when ranking.
+     * @return The matching locations.
+     */
+    public static List<GraphNode> getLocationsByWords(GraphDB graph, String query,
+                                                      double[] center, int limit) {
+        List<GraphNode> found = graph.getTokenIndex().search(query);
+        if (center != null) {
+            PointIndex index = graph.getPoiIndex();
+            found.sort(Comparator.comparingDouble(n -> index.distance(n, center[0], center[1])));
+            if (found.size() > limit) {
+                found = found.subList(0, limit);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Build the Json response map describing a single location, as used by getLocations.
+     */
+    private static Map<String, Object> getLocationInfo(GraphNode curr) {
+        HashMap<String, Object> currInfo = new HashMap<>();
+        currInfo.put("lat", curr.getLoc()[1]);
+        currInfo.put("lon", curr.getLoc()[0]);
+        currInfo.put("name", curr.getName());
+        currInfo.put("id", curr.getID()); //longValue for formatting reasons
+        return currInfo;
+    }
+
+        private static BufferedImage getImageStream(MapData d, String tileName) {
+            if (OverzoomTiles.isOverzoomed(tileName)) {
+                return d.getOverzoomTiles().tile(tileName, name -> getImageStream(d, name));
+            }
+            /* ImageIO.read leaves the stream open, and tiles on disk hold a file handle. */
             BufferedImage bi = null;
-            try {
+            try (InputStream in = d.openTile(tileName)) {
                 bi = ImageIO.read(in);
             } catch (IOException e) {
                 e.printStackTrace();
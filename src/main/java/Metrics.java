@@ -0,0 +1,162 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Per-stage latency histograms and counters for the raster, routing and search pipelines,
+ * rendered by the /metrics endpoint in the Prometheus plain-text exposition format.
+ * Stages are fixed fields rather than looked up by name, so timing a stage costs two
+ * System.nanoTime() calls and a LatencyHistogram.record.
+ */
+public class Metrics {
+
+    public static final LatencyHistogram QUADTREE_BUILD = new LatencyHistogram();
+    public static final LatencyHistogram QUADTREE_QUERY = new LatencyHistogram();
+    /** Per tile. */
+    public static final LatencyHistogram TILE_DECODE = new LatencyHistogram();
+    public static final LatencyHistogram COMPOSITE = new LatencyHistogram();
+    public static final LatencyHistogram NEAREST_NODE = new LatencyHistogram();
+    public static final LatencyHistogram SHORTEST_PATH = new LatencyHistogram();
+    public static final LatencyHistogram ALTERNATIVE_ROUTES = new LatencyHistogram();
+    public static final LatencyHistogram ISOCHRONE = new LatencyHistogram();
+    public static final LatencyHistogram MAP_MATCH = new LatencyHistogram();
+    /** Per raster: drawing its route, over all its tiles. */
+    public static final LatencyHistogram ROUTE_DRAW = new LatencyHistogram();
+    /** Per raster: drawing its isochrone, over all its strips. */
+    public static final LatencyHistogram ISOCHRONE_DRAW = new LatencyHistogram();
+    public static final LatencyHistogram RESAMPLE = new LatencyHistogram();
+    /** Per synthesized tile, on a cache miss. */
+    public static final LatencyHistogram OVERZOOM = new LatencyHistogram();
+    public static final LatencyHistogram JPEG_ENCODE = new LatencyHistogram();
+    /** Base64 and Json encoding of the raster response. */
+    public static final LatencyHistogram RESPONSE_ENCODE = new LatencyHistogram();
+    public static final LatencyHistogram RASTER_REQUEST = new LatencyHistogram();
+    public static final LatencyHistogram SEARCH_REQUEST = new LatencyHistogram();
+    public static final LatencyHistogram NEARBY_REQUEST = new LatencyHistogram();
+    /** Loading a version of the graph and warming its caches. */
+    public static final LatencyHistogram DATA_LOAD = new LatencyHistogram();
+    /** Requests RegionRouter sends to its shards, until their response starts. */
+    public static final LatencyHistogram SHARD_REQUEST = new LatencyHistogram();
+    /** Garbage collection pauses, to the millisecond, once recordGcPauses has been called. */
+    public static final LatencyHistogram GC_PAUSE = new LatencyHistogram();
+
+    public static final LongAdder TILES_COMPOSITED = new LongAdder();
+    public static final LongAdder NODES_SETTLED = new LongAdder();
+    public static final LongAdder RASTER_REJECTED = new LongAdder();
+    /** Requests answered from an identical raster or route computed concurrently. */
+    public static final LongAdder RASTER_COALESCED = new LongAdder();
+    public static final LongAdder ROUTE_COALESCED = new LongAdder();
+    public static final LongAdder TILE_CACHE_HITS = new LongAdder();
+    public static final LongAdder TILE_CACHE_MISSES = new LongAdder();
+    /** Raster images checked out of RasterBuffers, reusing a pooled array or not. */
+    public static final LongAdder RASTER_BUFFER_REUSES = new LongAdder();
+    public static final LongAdder RASTER_BUFFER_ALLOCATIONS = new LongAdder();
+    public static final LongAdder DATA_RELOADS = new LongAdder();
+    public static final LongAdder DATA_RELOAD_FAILURES = new LongAdder();
+    /** Shard requests of RegionRouter that failed to connect or timed out. */
+    public static final LongAdder SHARD_FAILURES = new LongAdder();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final Map<String, LatencyHistogram> STAGES = new LinkedHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new LinkedHashMap<>();
+
+    static {
+        STAGES.put("quadtree_build", QUADTREE_BUILD);
+        STAGES.put("quadtree_query", QUADTREE_QUERY);
+        STAGES.put("tile_decode", TILE_DECODE);
+        STAGES.put("composite", COMPOSITE);
+        STAGES.put("nearest_node", NEAREST_NODE);
+        STAGES.put("shortest_path", SHORTEST_PATH);
+        STAGES.put("alternative_routes", ALTERNATIVE_ROUTES);
+        STAGES.put("isochrone", ISOCHRONE);
+        STAGES.put("map_match", MAP_MATCH);
+        STAGES.put("route_draw", ROUTE_DRAW);
+        STAGES.put("isochrone_draw", ISOCHRONE_DRAW);
+        STAGES.put("resample", RESAMPLE);
+        STAGES.put("overzoom", OVERZOOM);
+        STAGES.put("jpeg_encode", JPEG_ENCODE);
+        STAGES.put("response_encode", RESPONSE_ENCODE);
+        STAGES.put("raster_request", RASTER_REQUEST);
+        STAGES.put("search_request", SEARCH_REQUEST);
+        STAGES.put("nearby_request", NEARBY_REQUEST);
+        STAGES.put("data_load", DATA_LOAD);
+        STAGES.put("shard_request", SHARD_REQUEST);
+        STAGES.put("gc_pause", GC_PAUSE);
+        COUNTERS.put("tiles_composited", TILES_COMPOSITED);
+        COUNTERS.put("nodes_settled", NODES_SETTLED);
+        COUNTERS.put("raster_rejected", RASTER_REJECTED);
+        COUNTERS.put("raster_coalesced", RASTER_COALESCED);
+        COUNTERS.put("route_coalesced", ROUTE_COALESCED);
+        COUNTERS.put("tile_cache_hits", TILE_CACHE_HITS);
+        COUNTERS.put("tile_cache_misses", TILE_CACHE_MISSES);
+        COUNTERS.put("raster_buffer_reuses", RASTER_BUFFER_REUSES);
+        COUNTERS.put("raster_buffer_allocations", RASTER_BUFFER_ALLOCATIONS);
+        COUNTERS.put("data_reloads", DATA_RELOADS);
+        COUNTERS.put("data_reload_failures", DATA_RELOAD_FAILURES);
+        COUNTERS.put("shard_failures", SHARD_FAILURES);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Record every garbage collection pause of this JVM from now on in GC_PAUSE. Collectors
+     * that report whole concurrent cycles rather than pauses are left out.
+     */
+    public static void recordGcPauses() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter) || gc.getName().contains("Concurrent")
+                    || gc.getName().contains("Cycles")) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                        .equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData());
+                GC_PAUSE.record(info.getGcInfo().getDuration() * 1000000L);
+            }, null, null);
+        }
+    }
+
+    /**
+     * Render every stage and counter in the Prometheus text format, with durations in seconds.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP bearmaps_stage_seconds Time spent in each pipeline stage.\n");
+        out.append("# TYPE bearmaps_stage_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> e : STAGES.entrySet()) {
+            String stage = "stage=\"" + e.getKey() + "\"";
+            LatencyHistogram h = e.getValue();
+            for (double q : QUANTILES) {
+                out.append("bearmaps_stage_seconds{").append(stage).append(",quantile=\"")
+                        .append(q).append("\"} ").append(seconds(h.percentile(q))).append('\n');
+            }
+            out.append("bearmaps_stage_seconds_sum{").append(stage).append("} ")
+                    .append(seconds(h.sum())).append('\n');
+            out.append("bearmaps_stage_seconds_count{").append(stage).append("} ")
+                    .append(h.count()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> e : COUNTERS.entrySet()) {
+            String name = "bearmaps_" + e.getKey() + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,72 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.function.Function;
+
+/**
+ * Synthesizes the tiles below QuadTree.TILE_DEPTH, for which there are no images on disk. Each
+ * is its quadrant of its ancestor at TILE_DEPTH, upsampled bilinearly to a full tile: a tile's
+ * digits past TILE_DEPTH name the quadrants to descend into, as they do above it. The tiles
+ * synthesized are cached with the decoded tiles, by file name, in the TileSlabCache; only the
+ * ancestors are kept here, decoded, since every synthesized tile of a raster usually shares
+ * one of a few.
+ */
+public class OverzoomTiles {
+
+    private final LruCache<String, BufferedImage> ancestors;
+
+    public OverzoomTiles(int maxAncestors) {
+        ancestors = new LruCache<>(maxAncestors);
+    }
+
+    /** Whether the tile named <code>fileName</code> is below the tiles on disk. */
+    public static boolean isOverzoomed(String fileName) {
+        return fileName.length() > QuadTree.TILE_DEPTH;
+    }
+
+    /**
+     * Synthesize the tile named <code>fileName</code>, which is below QuadTree.TILE_DEPTH,
+     * from its ancestor as read by <code>decode</code>; null if the ancestor could not be read.
+     */
+    public BufferedImage tile(String fileName, Function<String, BufferedImage> decode) {
+        String ancestorName = fileName.substring(0, QuadTree.TILE_DEPTH);
+        BufferedImage ancestor = ancestors.get(ancestorName);
+        if (ancestor == null) {
+            ancestor = toRgb(decode.apply(ancestorName));
+            if (ancestor == null) {
+                return null;
+            }
+            ancestors.put(ancestorName, ancestor);
+        }
+        long start = System.nanoTime();
+        double size = ancestor.getWidth();
+        double x = 0;
+        double y = 0;
+        for (int i = QuadTree.TILE_DEPTH; i < fileName.length(); i++) {
+            size /= 2;
+            int quadrant = fileName.charAt(i) - '1';
+            x += (quadrant & 1) * size;
+            y += (quadrant >> 1) * size;
+        }
+        BufferedImage tile = RasterResampler.resample(ancestor, x, y, size, size,
+                MapServer.TILE_SIZE, MapServer.TILE_SIZE);
+        Metrics.OVERZOOM.recordSince(start);
+        return tile;
+    }
+
+    public void clear() {
+        ancestors.clear();
+    }
+
+    /** <code>image</code> as a TYPE_INT_RGB image, the only type RasterResampler reads. */
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Uniform grid spatial index over a fixed set of GraphNodes, used to answer nearest-neighbor
+ * queries around a point without scanning every node. Nodes are bucketed into cells once at
+ * construction; the cell contents are stored contiguously (cellStart / nodes) so a query only
+ * touches the cells it needs.
+ * Distances are euclidean in lon/lat degrees, the same metric as GraphNode.getDistanceTo,
+ * unless the index is built with a longitude scale; see distance.
+ */
+public class PointIndex {
+
+    /** Target average number of nodes per grid cell. */
+    private static final int NODES_PER_CELL = 8;
+
+    private final double minLon, minLat, cellWidth, cellHeight;
+    /** Longitude differences are multiplied by this in distances. */
+    private final double lonScale;
+    private final int cols, rows;
+    /** Nodes of cell c live in nodes[cellStart[c] .. cellStart[c + 1]). */
+    private final int[] cellStart;
+    private final GraphNode[] nodes;
+    private final double[] lons, lats;
+
+    public PointIndex(Collection<GraphNode> points) {
+        this(points, 1);
+    }
+
+    /**
+     * Index <code>points</code>, measuring distance with longitude differences multiplied by
+     * <code>lonScale</code>: the cosine of the latitude makes distances proportional to ground
+     * distance, in degrees of latitude.
+     */
+    public PointIndex(Collection<GraphNode> points, double lonScale) {
+        this.lonScale = lonScale;
+        double loLon = Double.MAX_VALUE, loLat = Double.MAX_VALUE;
+        double hiLon = -Double.MAX_VALUE, hiLat = -Double.MAX_VALUE;
+        for (GraphNode n : points) {
+            loLon = Math.min(loLon, n.getLoc()[0]);
+            hiLon = Math.max(hiLon, n.getLoc()[0]);
+            loLat = Math.min(loLat, n.getLoc()[1]);
+            hiLat = Math.max(hiLat, n.getLoc()[1]);
+        }
+        if (points.isEmpty()) {
+            loLon = hiLon = loLat = hiLat = 0;
+        }
+        int side = Math.max(1, (int) Math.sqrt(points.size() / (double) NODES_PER_CELL));
+        minLon = loLon;
+        minLat = loLat;
+        cols = side;
+        rows = side;
+        /* Pad the extent slightly so the max corner still falls inside the last cell. */
+        cellWidth = Math.max((hiLon - loLon) * 1.000001, 1e-9) / cols;
+        cellHeight = Math.max((hiLat - loLat) * 1.000001, 1e-9) / rows;
+
+        /* Counting sort of the nodes by cell. */
+        int[] cellOf = new int[points.size()];
+        cellStart = new int[cols * rows + 1];
+        int i = 0;
+        for (GraphNode n : points) {
+            cellOf[i] = cell(column(n.getLoc()[0]), row(n.getLoc()[1]));
+            cellStart[cellOf[i] + 1] += 1;
+            i += 1;
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = new int[cols * rows];
+        nodes = new GraphNode[points.size()];
+        lons = new double[points.size()];
+        lats = new double[points.size()];
+        i = 0;
+        for (GraphNode n : points) {
+            int slot = cellStart[cellOf[i]] + fill[cellOf[i]]++;
+            nodes[slot] = n;
+            lons[slot] = n.getLoc()[0];
+            lats[slot] = n.getLoc()[1];
+            i += 1;
+        }
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Visit the nodes accepted by <code>filter</code> in order of increasing distance to
+     * (lon, lat), until <code>visitor</code> returns false or the index is exhausted. Cells are
+     * opened ring by ring around the query cell, and a ring is only opened once every node closer
+     * than its lower distance bound has been visited.
+     */
+    public void visitNearest(double lon, double lat, Predicate<GraphNode> filter,
+                             Predicate<GraphNode> visitor) {
+        if (nodes.length == 0) {
+            return;
+        }
+        int qc = column(lon);
+        int qr = row(lat);
+        int maxRing = Math.max(Math.max(qc, cols - 1 - qc), Math.max(qr, rows - 1 - qr));
+        double ringStep = Math.min(cellWidth * lonScale, cellHeight);
+
+        PriorityQueue<Entry> fringe = new PriorityQueue<>();
+        fringe.add(new Entry(0, -1, 0));
+        while (!fringe.isEmpty()) {
+            Entry e = fringe.poll();
+            if (e.slot >= 0) {
+                if (!visitor.test(nodes[e.slot])) {
+                    return;
+                }
+                continue;
+            }
+            /* A ring marker: open every cell at chebyshev distance e.ring from the query cell. */
+            int r = e.ring;
+            for (int row = qr - r; row <= qr + r; row++) {
+                if (row < 0 || row >= rows) {
+                    continue;
+                }
+                boolean edgeRow = row == qr - r || row == qr + r;
+                for (int col = qc - r; col <= qc + r; col += edgeRow ? 1 : 2 * r) {
+                    if (col >= 0 && col < cols) {
+                        int c = cell(col, row);
+                        for (int s = cellStart[c]; s < cellStart[c + 1]; s++) {
+                            if (filter.test(nodes[s])) {
+                                fringe.add(new Entry(distance(s, lon, lat), s, r));
+                            }
+                        }
+                    }
+                    if (r == 0) {
+                        break;
+                    }
+                }
+            }
+            if (r < maxRing) {
+                fringe.add(new Entry(r * ringStep, -1, r + 1));
+            }
+        }
+    }
+
+    /**
+     * Return up to <code>k</code> nodes accepted by <code>filter</code>, closest first.
+     */
+    public List<GraphNode> nearest(double lon, double lat, int k, Predicate<GraphNode> filter) {
+        List<GraphNode> result = new ArrayList<>();
+        if (k <= 0) {
+            return result;
+        }
+        visitNearest(lon, lat, filter, n -> {
+            result.add(n);
+            return result.size() < k;
+        });
+        return result;
+    }
+
+    /**
+     * The distance from <code>node</code> to (lon, lat) as the index measures it: in degrees
+     * of latitude, with longitude differences scaled.
+     */
+    public double distance(GraphNode node, double lon, double lat) {
+        double dx = (node.getLoc()[0] - lon) * lonScale;
+        double dy = node.getLoc()[1] - lat;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private double distance(int slot, double lon, double lat) {
+        double dx = (lons[slot] - lon) * lonScale;
+        double dy = lats[slot] - lat;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private int column(double lon) {
+        return Math.min(cols - 1, Math.max(0, (int) ((lon - minLon) / cellWidth)));
+    }
+
+    private int row(double lat) {
+        return Math.min(rows - 1, Math.max(0, (int) ((lat - minLat) / cellHeight)));
+    }
+
+    private int cell(int col, int row) {
+        return row * cols + col;
+    }
+
+    /** Either a node (slot >= 0) or the marker for the next ring of cells to open. */
+    private static class Entry implements Comparable<Entry> {
+        private final double dist;
+        private final int slot;
+        private final int ring;
+
+        Entry(double dist, int slot, int ring) {
+            this.dist = dist;
+            this.slot = slot;
+            this.ring = ring;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Double.compare(dist, o.dist);
+        }
+    }
+}
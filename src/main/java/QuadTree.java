@@ -9,7 +9,14 @@ public class QuadTree {
 
     private QuadTreeNode root;
 
-    private final int depth = 7;
+    /** The depth of the deepest tiles on disk. */
+    public static final int TILE_DEPTH = 7;
+    /**
+     * The depth of the deepest tiles served. Tiles below TILE_DEPTH are synthesized from their
+     * ancestor at TILE_DEPTH by OverzoomTiles, and their nodes only made when a query reaches
+     * them, so the tree is no bigger for them until then.
+     */
+    public static final int MAX_DEPTH = 10;
 
     public QuadTree() {
         double[] upperLeft = {MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT};
@@ -49,40 +56,51 @@ public class QuadTree {
      */
     private void makeTilesHelper(QuadTreeNode node, int d) {
         //String name = "";
-        if (d == this.depth) {
+        if (d == TILE_DEPTH) {
             return;
-        } else { //figure out long/lat calculations, naming concatination, pixel density
-            double midLon = (node.getUpperLeft()[0] + node.getLowerRight()[0]) / 2;
-            double midLat = (node.getUpperLeft()[1] + node.getLowerRight()[1]) / 2;
-
-            /* ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
-            ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
-            */
-
-            //case to cut off root from name
-            String name = node.getFileName();
-            if (d == 0) name = name.substring(4);
-
-            for (int k = 0; k < node.getChildren().length; k++) {
-                if (k == 0) { // the first child node
-                    double[] newUpperLeft = node.getUpperLeft();
-                    double[] newLowerRight = {midLon, midLat};
-                    node.setChild(k, new QuadTreeNode(name + "1", newUpperLeft, newLowerRight));
-                } else if (k == 1) { // the second child node
-                    double[] newUpperLeft = {midLon, node.getUpperLeft()[1]};
-                    double[] newLowerRight = {node.getLowerRight()[0], midLat};
-                    node.setChild(k, new QuadTreeNode(name + "2", newUpperLeft, newLowerRight));
-                } else if (k == 2) { // the third child node
-                    double[] newUpperLeft = {node.getUpperLeft()[0], midLat};
-                    double[] newLowerRight = {midLon, node.getLowerRight()[1]};
-                    node.setChild(k, new QuadTreeNode(name + "3", newUpperLeft, newLowerRight));
-                } else { // the fourth child node
-                    double[] newUpperLeft = {midLon, midLat};
-                    double[] newLowerRight = node.getLowerRight();
-
-                    node.setChild(k, new QuadTreeNode(name + "4", newUpperLeft, newLowerRight));
-                }
-                makeTilesHelper(node.getChild(k), d + 1);
+        } else {
+            split(node, d);
+            for (QuadTreeNode child : node.getChildren()) {
+                makeTilesHelper(child, d + 1);
+            }
+        }
+    }
+
+    /**
+     * Give <code>node</code>, at depth <code>d</code>, its four children, named after it with
+     * their quadrant's digit appended.
+     */
+    private static void split(QuadTreeNode node, int d) {
+        //figure out long/lat calculations, naming concatination, pixel density
+        double midLon = (node.getUpperLeft()[0] + node.getLowerRight()[0]) / 2;
+        double midLat = (node.getUpperLeft()[1] + node.getLowerRight()[1]) / 2;
+
+        /* ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
+        ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
+        */
+
+        //case to cut off root from name
+        String name = node.getFileName();
+        if (d == 0) name = name.substring(4);
+
+        for (int k = 0; k < node.getChildren().length; k++) {
+            if (k == 0) { // the first child node
+                double[] newUpperLeft = node.getUpperLeft();
+                double[] newLowerRight = {midLon, midLat};
+                node.setChild(k, new QuadTreeNode(name + "1", newUpperLeft, newLowerRight));
+            } else if (k == 1) { // the second child node
+                double[] newUpperLeft = {midLon, node.getUpperLeft()[1]};
+                double[] newLowerRight = {node.getLowerRight()[0], midLat};
+                node.setChild(k, new QuadTreeNode(name + "2", newUpperLeft, newLowerRight));
+            } else if (k == 2) { // the third child node
+                double[] newUpperLeft = {node.getUpperLeft()[0], midLat};
+                double[] newLowerRight = {midLon, node.getLowerRight()[1]};
+                node.setChild(k, new QuadTreeNode(name + "3", newUpperLeft, newLowerRight));
+            } else { // the fourth child node
+                double[] newUpperLeft = {midLon, midLat};
+                double[] newLowerRight = node.getLowerRight();
+
+                node.setChild(k, new QuadTreeNode(name + "4", newUpperLeft, newLowerRight));
             }
         }
     }
@@ -102,7 +120,8 @@ public class QuadTree {
     //make sure covering images in between;
     private void imageFinder(QuadTreeNode curr, double ullon, double lrlon,
                              double ullat, double lrlat, double resolution) {
-        if (curr.getPixelDistLong() <= resolution || curr.getFileName().length() == 7) {
+        int d = curr == root ? 0 : curr.getFileName().length();
+        if (curr.getPixelDistLong() <= resolution || d == MAX_DEPTH) {
             if (curr.isCorner(ullon, lrlon, ullat, lrlat)
                     || curr.isEdge(ullon, lrlon, ullat, lrlat)
                     || curr.isInside(ullon, lrlon, ullat, lrlat)) {
@@ -110,6 +129,9 @@ public class QuadTree {
             }
 
         } else {
+            if (curr.getChild(0) == null) {
+                split(curr, d);
+            }
             for (QuadTreeNode a: curr.getChildren()) {
                 if (a.isCorner(ullon, lrlon, ullat, lrlat)
                         || a.isEdge(ullon, lrlon, ullat, lrlat)
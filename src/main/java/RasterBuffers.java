@@ -0,0 +1,115 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pools the large buffers of the raster endpoint, so a request reuses those of earlier ones
+ * instead of allocating megabytes of short-lived arrays, which G1 allocates as humongous
+ * objects. Destination images are TYPE_INT_RGB images over pooled pixel arrays, bucketed by
+ * size: each array holds the next size of the form m * 2^k, m in 4..7, at or above the pixels
+ * asked for, so at most a quarter of it goes unused. Checkout and release of arrays are
+ * lock-free. JPEG buffers are kept per thread, since each raster request encodes on a single
+ * thread of the raster pool.
+ */
+public class RasterBuffers {
+
+    private static final DirectColorModel RGB =
+            new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF, 0);
+    private static final int[] RGB_MASKS = {0xFF0000, 0x00FF00, 0x0000FF};
+    /** JPEG buffers that have grown past this are dropped once used, not kept. */
+    private static final int MAX_KEPT_ENCODE_BYTES = 16 << 20;
+
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>> pixels =
+            new ConcurrentHashMap<>();
+    private final ThreadLocal<Bytes> jpegBuffers = ThreadLocal.withInitial(Bytes::new);
+
+    /** A ByteArrayOutputStream whose bytes can be read in place. */
+    public static class Bytes extends ByteArrayOutputStream {
+
+        /** The buffer holding the bytes written, the first size() of them. */
+        public byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * @param maxPooledBytes The most bytes of pixel arrays kept for reuse while released.
+     */
+    public RasterBuffers(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Check out a TYPE_INT_RGB image of <code>width</code> by <code>height</code> pixels.
+     * Its pixels are left as the previous user left them, so the caller must draw all of them.
+     */
+    public BufferedImage image(int width, int height) {
+        int size = bucketSize(width * height);
+        ConcurrentLinkedQueue<int[]> bucket = pixels.get(size);
+        int[] array = bucket == null ? null : bucket.poll();
+        if (array != null) {
+            pooledBytes.addAndGet(-4L * size);
+            Metrics.RASTER_BUFFER_REUSES.increment();
+        } else {
+            array = new int[size];
+            Metrics.RASTER_BUFFER_ALLOCATIONS.increment();
+        }
+        WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(array, width * height), width, height, width, RGB_MASKS, null);
+        return new BufferedImage(RGB, raster, false, null);
+    }
+
+    /**
+     * Return an image checked out with <code>image</code> to the pool, once nothing reads it
+     * any more. Images not from the pool are ignored.
+     */
+    public void release(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferInt)) {
+            return;
+        }
+        int[] array = ((DataBufferInt) buffer).getData();
+        if (array.length != bucketSize(array.length)) {
+            return;
+        }
+        if (pooledBytes.addAndGet(4L * array.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-4L * array.length);
+            return;
+        }
+        pixels.computeIfAbsent(array.length, k -> new ConcurrentLinkedQueue<>()).offer(array);
+    }
+
+    /** This thread's buffer for encoded JPEGs, emptied. */
+    public Bytes jpegBuffer() {
+        return checkout(jpegBuffers);
+    }
+
+    private static Bytes checkout(ThreadLocal<Bytes> buffers) {
+        Bytes bytes = buffers.get();
+        if (bytes.array().length > MAX_KEPT_ENCODE_BYTES) {
+            /* Let an outsized buffer go rather than hold it for every later request. */
+            bytes = new Bytes();
+            buffers.set(bytes);
+        }
+        bytes.reset();
+        return bytes;
+    }
+
+    /** The pooled array size for <code>n</code> pixels: the least m * 2^k >= n, m in 4..7. */
+    static int bucketSize(int n) {
+        if (n <= 8) {
+            return 8;
+        }
+        int shift = 29 - Integer.numberOfLeadingZeros(n - 1);
+        return (((n - 1) >> shift) + 1) << shift;
+    }
+}
@@ -0,0 +1,85 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Bilinear resampling of TYPE_INT_RGB images, working on the images' pixel arrays directly.
+ * Weights are 8-bit fixed point, each output column's source offsets and weights are computed
+ * once, and the red and blue channels are interpolated together in one int, so nothing is
+ * allocated per pixel and the inner loop is integer arithmetic only.
+ */
+public class RasterResampler {
+
+    private static final int FRACTION_BITS = 8;
+    private static final int ONE = 1 << FRACTION_BITS;
+    private static final int RED_BLUE = 0xFF00FF;
+    private static final int GREEN = 0x00FF00;
+
+    /**
+     * Resample the region of <code>src</code>, a TYPE_INT_RGB image, whose upper left corner
+     * is at pixel (x, y) and which is <code>width</code> by <code>height</code> pixels, all
+     * possibly fractional, into a new image of <code>outWidth</code> by
+     * <code>outHeight</code> pixels.
+     */
+    public static BufferedImage resample(BufferedImage src, double x, double y, double width,
+                                         double height, int outWidth, int outHeight) {
+        return resample(src, x, y, width, height,
+                new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * Like resample, into <code>dst</code>, a TYPE_INT_RGB image of the output size, every
+     * pixel of which is overwritten.
+     * @return <code>dst</code>.
+     */
+    public static BufferedImage resample(BufferedImage src, double x, double y, double width,
+                                         double height, BufferedImage dst) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int outWidth = dst.getWidth();
+        int outHeight = dst.getHeight();
+        int[] in = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+
+        double scaleX = width / outWidth;
+        double scaleY = height / outHeight;
+        int[] left = new int[outWidth];
+        int[] right = new int[outWidth];
+        int[] weight = new int[outWidth];
+        for (int i = 0; i < outWidth; i++) {
+            /* The source position of the output pixel's center. */
+            double sx = clamp(x + (i + 0.5) * scaleX - 0.5, srcWidth - 1);
+            left[i] = (int) sx;
+            right[i] = Math.min(left[i] + 1, srcWidth - 1);
+            weight[i] = (int) ((sx - left[i]) * ONE);
+        }
+        for (int j = 0; j < outHeight; j++) {
+            double sy = clamp(y + (j + 0.5) * scaleY - 0.5, srcHeight - 1);
+            int top = (int) sy;
+            int topRow = top * srcWidth;
+            int bottomRow = Math.min(top + 1, srcHeight - 1) * srcWidth;
+            int fy = (int) ((sy - top) * ONE);
+            int row = j * outWidth;
+            for (int i = 0; i < outWidth; i++) {
+                int fx = weight[i];
+                int upper = lerp(in[topRow + left[i]], in[topRow + right[i]], fx);
+                int lower = lerp(in[bottomRow + left[i]], in[bottomRow + right[i]], fx);
+                out[row + i] = lerp(upper, lower, fy);
+            }
+        }
+        return dst;
+    }
+
+    /** Interpolate between the RGB pixels a and b, <code>f</code> / ONE of the way to b. */
+    private static int lerp(int a, int b, int f) {
+        int g = ONE - f;
+        /* The products of the red and blue channels, 8 bits apart, cannot carry into each
+         * other, and fill at most 32 bits, so they are shifted back unsigned. */
+        int redBlue = (((a & RED_BLUE) * g + (b & RED_BLUE) * f) >>> FRACTION_BITS) & RED_BLUE;
+        int green = (((a & GREEN) * g + (b & GREEN) * f) >>> FRACTION_BITS) & GREEN;
+        return redBlue | green;
+    }
+
+    private static double clamp(double v, int max) {
+        return Math.max(0, Math.min(max, v));
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The result of a raster request: the raster's parameters, as described at
+ * MapServer.getMapRaster, and its JPEG, if one was rastered. It is written out as the raster
+ * endpoint's Json response as it is sent, with the JPEG Base64-encoded straight into the
+ * response stream, so the multi-megabyte image field is never built as a String.
+ */
+public class RasterResponse {
+
+    private static final byte[] IMAGE_FIELD =
+            "\"b64_encoded_image_data\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, Object> params;
+    private final byte[] jpeg;
+
+    /**
+     * @param jpeg The encoded raster, or null if none was rastered.
+     */
+    public RasterResponse(Map<String, Object> params, byte[] jpeg) {
+        this.params = params;
+        this.jpeg = jpeg;
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    /**
+     * Write the response as a Json object: the raster's parameters, and the JPEG as the
+     * Base64 string "b64_encoded_image_data". <code>out</code> is flushed but left open.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        Writer text = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        JsonWriter json = new JsonWriter(text);
+        json.beginObject();
+        if (jpeg != null) {
+            /* JsonWriter takes values only whole, so the image's field is written around it,
+             * first: the object has no field yet as far as the writer knows, so it will not
+             * put a comma before the parameters that follow. */
+            json.flush();
+            out.write(IMAGE_FIELD);
+            try (OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    /* Closing the encoder pads its output; the response stays open. */
+                    flush();
+                }
+            })) {
+                base64.write(jpeg);
+            }
+            out.write('"');
+            if (!params.isEmpty()) {
+                out.write(',');
+            }
+        }
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            json.name(e.getKey());
+            Object value = e.getValue();
+            if (value instanceof Number) {
+                json.value((Number) value);
+            } else if (value instanceof Boolean) {
+                json.value((Boolean) value);
+            } else {
+                json.value(String.valueOf(value));
+            }
+        }
+        json.endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,842 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Maven is used to pull in these dependencies. */
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static spark.Spark.*;
+
+/**
+ * The entry point for serving a map of several regions, each by its own MapServer process, or
+ * shard, with its own tiles, graph and search index; see RegionShard for how the regions are
+ * listed. The router answers the MapServer endpoints itself, passing each request on to the
+ * shards whose bounds it concerns:<br>
+ * /raster goes to the region covering most of the requested box,<br>
+ * /routes to a region holding both endpoints, or else is stitched together from a route to
+ * the border in the start's region and one on from it in the end's region,<br>
+ * /isochrone and /match go to the region of the start point or trace,<br>
+ * /search and /nearby go to every region the query concerns, and their results are merged.<br>
+ * The router starts the shards listed with their OSM file and tiles as processes of their own,
+ * passing on its bearmaps.* system properties, and stops them when it stops. The regions are
+ * listed in REGIONS_PATH, unless the system property bearmaps.regions names another file.
+ */
+public class RegionRouter {
+
+    private static final String REGIONS_PATH = "regions.txt";
+    /** HTTP response when a shard cannot be reached. */
+    private static final int BAD_GATEWAY = 502;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int READ_TIMEOUT_MS = 60000;
+    private static final int PROXY_BUFFER_BYTES = 64 << 10;
+    /** Points along the border between two regions that a crossing route may pass through. */
+    private static final int BORDER_CROSSINGS = 8;
+    private static final String[] ROUTE_PARAMS = MapServer.REQUIRED_ROUTE_REQUEST_PARAMS;
+    /** System properties of the router itself, or set for each shard, and so not passed on. */
+    private static final Set<String> ROUTER_PROPERTIES = new HashSet<>(Arrays.asList(
+            "bearmaps.regions", "bearmaps.port", "bearmaps.bounds", "bearmaps.osm",
+            "bearmaps.tiles"));
+    private static final Gson GSON = new Gson();
+    private static List<RegionShard> shards;
+    /** Sends the requests of a fan-out or a border crossing concurrently. */
+    private static ExecutorService shardRequests;
+
+    public static void main(String[] args) throws IOException {
+        setRegions(RegionShard.readAll(System.getProperty("bearmaps.regions", REGIONS_PATH)));
+        startLocalShards();
+        port(MapServer.getHerokuAssignedPort());
+        staticFileLocation("/page");
+        before((request, response) -> {
+            response.header("Access-Control-Allow-Origin", "*");
+            response.header("Access-Control-Request-Method", "*");
+            response.header("Access-Control-Allow-Headers", "*");
+        });
+
+        get("/raster", (req, res) -> {
+            double[] box = getParams(req, MapServer.REQUIRED_RASTER_REQUEST_PARAMS);
+            RegionShard shard = null;
+            double most = 0;
+            for (RegionShard s : shards) {
+                double area = s.overlapArea(box[0], box[1], box[2], box[3]);
+                if (area > most) {
+                    shard = s;
+                    most = area;
+                }
+            }
+            if (shard == null) {
+                halt(MapServer.HALT_RESPONSE, "The raster is outside every region.");
+            }
+            String query = req.queryString();
+            double[] route = getOptionalParams(req, ROUTE_PARAMS);
+            if (route != null && !(shard.contains(route[1], route[0])
+                    && shard.contains(route[3], route[2]))) {
+                /* A shard only routes within its own graph, so a route leaving its region is
+                 * left off the raster, for the client to draw from /routes. */
+                query = withoutParams(query, ROUTE_PARAMS);
+            }
+            proxy(shard, "/raster", query, res);
+            return "";
+        });
+
+        get("/routes", (req, res) -> {
+            double[] route = getParams(req, ROUTE_PARAMS);
+            RegionShard from = getRegion(route[1], route[0]);
+            RegionShard to = getRegion(route[3], route[2]);
+            if (from == null || to == null) {
+                halt(MapServer.HALT_RESPONSE, "The route leaves every region.");
+            }
+            for (RegionShard shard : shards) {
+                if (shard.contains(route[1], route[0]) && shard.contains(route[3], route[2])) {
+                    proxy(shard, "/routes", req.queryString(), res);
+                    return "";
+                }
+            }
+            return GSON.toJson(getCrossingRoute(from, to, route, req.queryString()));
+        });
+
+        get("/isochrone", (req, res) -> {
+            double[] start = getParams(req, MapServer.SEARCH_CENTER_PARAMS);
+            RegionShard shard = getRegion(start[1], start[0]);
+            if (shard == null) {
+                halt(MapServer.HALT_RESPONSE, "The start is outside every region.");
+            }
+            proxy(shard, "/isochrone", req.queryString(), res);
+            return "";
+        });
+
+        post("/match", (req, res) -> {
+            matchAll(new BufferedReader(new InputStreamReader(req.raw().getInputStream(),
+                    StandardCharsets.UTF_8)), req.queryString(), () -> {
+                        res.type("application/x-ndjson");
+                        return new BufferedWriter(new OutputStreamWriter(
+                                res.raw().getOutputStream(), StandardCharsets.UTF_8));
+                    });
+            return "";
+        });
+
+        get("/search", (req, res) -> {
+            double[] center = getSearchCenter(req);
+            List<RegionShard> targets = new ArrayList<>();
+            double[] viewport = getOptionalParams(req, MapServer.SEARCH_VIEWPORT_PARAMS);
+            for (RegionShard shard : shards) {
+                if (viewport != null ? shard.intersects(viewport[0], viewport[1], viewport[2],
+                        viewport[3]) : center != null && shard.contains(center[0], center[1])) {
+                    targets.add(shard);
+                }
+            }
+            /* A search around no point, or one outside every region, searches them all. */
+            List<JsonArray> results = fetchAll(targets.isEmpty() ? shards : targets, "/search",
+                    req.queryString());
+            if (center == null) {
+                return GSON.toJson(merge(results, null, Integer.MAX_VALUE));
+            }
+            return GSON.toJson(merge(results, Comparator.comparingDouble(
+                    location -> distance(location, center)), getIntParam(req, "limit",
+                    MapServer.DEFAULT_SEARCH_LIMIT)));
+        });
+
+        get("/nearby", (req, res) -> {
+            double[] center = getParams(req, MapServer.SEARCH_CENTER_PARAMS);
+            double radius = getDoubleParam(req, "radius", Double.POSITIVE_INFINITY);
+            /* The regions meeting the box around the circle of the radius. */
+            double dLat = radius / RoadGraph.METRES_PER_DEGREE;
+            double dLon = dLat / Math.cos(Math.toRadians(center[0]));
+            List<RegionShard> targets = new ArrayList<>();
+            for (RegionShard shard : shards) {
+                if (shard.intersects(center[0] + dLat, center[1] - dLon, center[0] - dLat,
+                        center[1] + dLon)) {
+                    targets.add(shard);
+                }
+            }
+            if (targets.isEmpty()) {
+                return "[]";
+            }
+            int limit = Math.min(MapServer.MAX_NEARBY_LIMIT, getIntParam(req, "limit",
+                    MapServer.DEFAULT_SEARCH_LIMIT));
+            return GSON.toJson(merge(fetchAll(targets, "/nearby", req.queryString()),
+                    Comparator.comparingDouble(location -> location.get("distance")
+                            .getAsDouble()), limit));
+        });
+
+        /* The router's own metrics; each shard serves its own. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.render();
+        });
+
+        get("/", (request, response) -> {
+            response.redirect("/map.html", 301);
+            return true;
+        });
+    }
+
+    /** Route requests to <code>regions</code>, listed in order of precedence. */
+    static void setRegions(List<RegionShard> regions) {
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("No regions are listed.");
+        }
+        shards = regions;
+        if (shardRequests == null) {
+            shardRequests = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "shard-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Start a MapServer for each region listed with its OSM file and tiles, with the router's
+     * class path and bearmaps.* system properties, to be stopped when the router stops. Each
+     * answers once it has loaded its data; until then, requests for its region fail with
+     * BAD_GATEWAY.
+     */
+    private static void startLocalShards() throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = System.getProperty("java.class.path");
+        Map<String, String> properties = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("bearmaps.") && !ROUTER_PROPERTIES.contains(name)) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        List<Process> started = new ArrayList<>();
+        for (RegionShard shard : shards) {
+            if (shard.isLocal()) {
+                started.add(new ProcessBuilder(shard.command(java, classPath, properties))
+                        .inheritIO().start());
+                System.out.println("Started region " + shard);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process process : started) {
+                process.destroy();
+            }
+        }));
+    }
+
+    /** The first region listed whose bounds hold (lon, lat), or null if none does. */
+    private static RegionShard getRegion(double lon, double lat) {
+        for (RegionShard shard : shards) {
+            if (shard.contains(lon, lat)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Route from the start in region <code>from</code> to the end in region <code>to</code>
+     * across their border, through whichever of BORDER_CROSSINGS points spread along the middle
+     * of the box the regions share gives the lightest route. <code>from</code> routes from the
+     * start to each crossing, and <code>to</code> on to the end from the very node that leg
+     * ends at, which both regions' graphs hold if it lies in the box they share; a crossing
+     * whose legs do not meet at one node is skipped. The legs of each side are asked for at
+     * once.
+     * @param route The route parameters, in the order of ROUTE_PARAMS.
+     * @param query The request's query, whose other parameters, such as the profile, are
+     *              passed on.
+     * @return The route in the format of /routes, as its only route, or none if no crossing
+     * joins the two.
+     */
+    static JsonArray getCrossingRoute(RegionShard from, RegionShard to, double[] route,
+                                      String query) throws InterruptedException {
+        double[] border = from.border(to);
+        if (border == null) {
+            halt(MapServer.HALT_RESPONSE, "Routes only cross between neighbouring regions.");
+        }
+        String others = withoutParams(query, ROUTE_PARAMS);
+        List<double[]> crossings = new ArrayList<>();
+        List<Future<JsonObject>> legsTo = new ArrayList<>();
+        for (int i = 0; i < BORDER_CROSSINGS; i++) {
+            double t = (i + 0.5) / BORDER_CROSSINGS;
+            double lat = (border[0] + border[2]) / 2;
+            double lon = (border[1] + border[3]) / 2;
+            /* Spread the crossings along the border's longer side. */
+            if (border[3] - border[1] > border[0] - border[2]) {
+                lon = border[1] + t * (border[3] - border[1]);
+            } else {
+                lat = border[0] - t * (border[0] - border[2]);
+            }
+            double[] crossing = {lat, lon};
+            crossings.add(crossing);
+            legsTo.add(shardRequests.submit(() -> getShortestRoute(from, others, null,
+                    route[0], route[1], crossing[0], crossing[1])));
+        }
+        RegionShard failed = null;
+        /* The first leg to each node a crossing snapped to, and the leg on from it. */
+        Map<String, JsonObject> firsts = new LinkedHashMap<>();
+        Map<String, Future<JsonObject>> legsFrom = new HashMap<>();
+        for (int i = 0; i < BORDER_CROSSINGS; i++) {
+            JsonObject first;
+            try {
+                first = legsTo.get(i).get();
+            } catch (ExecutionException e) {
+                failed = getFailedShard(e, from);
+                continue;
+            }
+            JsonArray ids = first == null ? null : first.get("ids").getAsJsonArray();
+            if (ids == null || ids.size() == 0) {
+                continue;
+            }
+            String node = ids.get(ids.size() - 1).getAsString();
+            double[] crossing = crossings.get(i);
+            if (!firsts.containsKey(node)) {
+                firsts.put(node, first);
+                legsFrom.put(node, shardRequests.submit(() -> getShortestRoute(to, others, node,
+                        crossing[0], crossing[1], route[2], route[3])));
+            }
+        }
+        JsonObject best = null;
+        double lightest = Double.POSITIVE_INFINITY;
+        for (Map.Entry<String, JsonObject> first : firsts.entrySet()) {
+            JsonObject second;
+            try {
+                second = legsFrom.get(first.getKey()).get();
+            } catch (ExecutionException e) {
+                failed = getFailedShard(e, to);
+                continue;
+            }
+            JsonObject joined = second == null ? null : join(first.getValue(), second);
+            if (joined != null && joined.get("weight").getAsDouble() < lightest) {
+                best = joined;
+                lightest = joined.get("weight").getAsDouble();
+            }
+        }
+        if (best == null && failed != null) {
+            halt(BAD_GATEWAY, "Region " + failed.getName() + " is unavailable.");
+        }
+        JsonArray routes = new JsonArray();
+        if (best != null) {
+            routes.add(best);
+        }
+        return routes;
+    }
+
+    /**
+     * Return <code>shard</code>, which could not be reached, as the request to it failed with
+     * <code>e</code>; halts of the request's own are passed on instead.
+     */
+    private static RegionShard getFailedShard(ExecutionException e, RegionShard shard) {
+        if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+        }
+        return shard;
+    }
+
+    /**
+     * The shortest route <code>shard</code> finds between the two points, in the format of
+     * /routes, or null if it finds none.
+     * @param startId The OSM id of the node to start from, in place of the node closest to
+     *                the start, or null.
+     */
+    private static JsonObject getShortestRoute(RegionShard shard, String others, String startId,
+                                               double startLat, double startLon,
+                                               double endLat, double endLon) throws IOException {
+        String query = withoutParams(others, new String[]{"alternatives", "start_id"});
+        query = (query.isEmpty() ? "" : query + "&") + "start_lat=" + startLat + "&start_lon="
+                + startLon + "&end_lat=" + endLat + "&end_lon=" + endLon + "&alternatives=1"
+                + (startId == null ? "" : "&start_id=" + startId);
+        JsonArray routes = fetchJson(shard, "/routes", query).getAsJsonArray();
+        return routes.size() == 0 ? null : routes.get(0).getAsJsonObject();
+    }
+
+    /**
+     * The route along <code>first</code> and then <code>second</code>, or null unless the
+     * second starts at the node the first ends at.
+     */
+    static JsonObject join(JsonObject first, JsonObject second) {
+        JsonArray firstIds = first.get("ids").getAsJsonArray();
+        JsonArray secondIds = second.get("ids").getAsJsonArray();
+        if (firstIds.size() == 0 || secondIds.size() == 0
+                || !firstIds.get(firstIds.size() - 1).equals(secondIds.get(0))) {
+            return null;
+        }
+        JsonArray ids = new JsonArray();
+        for (JsonElement id : firstIds) {
+            ids.add(id);
+        }
+        /* The node at the crossing ends one leg and starts the other. */
+        for (int i = 1; i < secondIds.size(); i++) {
+            ids.add(secondIds.get(i));
+        }
+        JsonObject route = new JsonObject();
+        route.add("ids", ids);
+        route.addProperty("length", first.get("length").getAsDouble()
+                + second.get("length").getAsDouble());
+        route.addProperty("weight", first.get("weight").getAsDouble()
+                + second.get("weight").getAsDouble());
+        return route;
+    }
+
+    /**
+     * Match the traces of <code>in</code>, as MapServer's /match does: each trace is matched
+     * by the region of its first fix, or the first region if none holds it, and the regions'
+     * matches are written back in the order the traces were read. A trace whose id repeats
+     * that of the last trace sent to the same region is matched together with it. Each
+     * region's traces are passed on as they are read, the region's request opened on its
+     * first, and its matches are spooled as it answers, so that a region answering while it
+     * reads never waits on the router.
+     * @param query The request's query, passed on to each region.
+     * @param respond Starts the response once every region has answered, and returns its
+     *                body.
+     */
+    static void matchAll(BufferedReader in, String query, Callable<Writer> respond)
+            throws Exception {
+        Map<RegionShard, MatchRequest> requests = new LinkedHashMap<>();
+        Map<RegionShard, String> lastIds = new HashMap<>();
+        /* The region whose response holds each trace's matches, in the order read. */
+        List<RegionShard> order = new ArrayList<>();
+        try {
+            String traceId = null;
+            MatchRequest request = null;
+            int lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber += 1;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                String id = fields[0].trim();
+                if (!id.equals(traceId)) {
+                    double lon;
+                    double lat;
+                    try {
+                        if (fields.length < 3) {
+                            throw new NumberFormatException();
+                        }
+                        lon = Double.parseDouble(fields[1].trim());
+                        lat = Double.parseDouble(fields[2].trim());
+                    } catch (NumberFormatException e) {
+                        if (lineNumber == 1) {
+                            continue;
+                        }
+                        halt(MapServer.HALT_RESPONSE, "Malformed fix on line " + lineNumber
+                                + ": expected trace,lon,lat.");
+                        return;
+                    }
+                    RegionShard shard = getRegion(lon, lat);
+                    if (shard == null) {
+                        shard = shards.get(0);
+                    }
+                    traceId = id;
+                    request = requests.get(shard);
+                    if (request == null) {
+                        request = new MatchRequest(shard, query);
+                        requests.put(shard, request);
+                    }
+                    if (!id.equals(lastIds.put(shard, id))) {
+                        order.add(shard);
+                    }
+                }
+                request.write(line);
+            }
+
+            Map<RegionShard, BufferedReader> matches = new HashMap<>();
+            for (MatchRequest r : requests.values()) {
+                matches.put(r.shard, r.finish());
+            }
+            Writer out = respond.call();
+            for (RegionShard shard : order) {
+                BufferedReader region = matches.get(shard);
+                if (!region.ready()) {
+                    /* Pass on what is matched while this region works on its next trace. */
+                    out.flush();
+                }
+                String line = region.readLine();
+                if (line == null) {
+                    break;
+                }
+                out.write(line);
+                out.write('\n');
+            }
+            out.flush();
+        } finally {
+            for (MatchRequest r : requests.values()) {
+                r.close();
+            }
+        }
+    }
+
+    /**
+     * A POST of traces to a region's /match, its body sent a chunk at a time as it is
+     * written while its response is spooled, timed in SHARD_REQUEST until the response
+     * starts. Failing to reach the region is counted in SHARD_FAILURES and answered with
+     * BAD_GATEWAY.
+     */
+    private static final class MatchRequest {
+        private final RegionShard shard;
+        private final long start = System.nanoTime();
+        private DuplexPost post;
+        private Writer body;
+
+        MatchRequest(RegionShard shard, String query) {
+            this.shard = shard;
+            try {
+                post = new DuplexPost(getUrl(shard, "/match", query), CONNECT_TIMEOUT_MS,
+                        READ_TIMEOUT_MS, shardRequests);
+                body = new BufferedWriter(new OutputStreamWriter(post.getBody(),
+                        StandardCharsets.UTF_8), PROXY_BUFFER_BYTES);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        /** Send a line of the body. */
+        void write(String line) throws IOException {
+            try {
+                body.write(line);
+                body.write('\n');
+            } catch (IOException e) {
+                /* The region may have answered an error and stopped reading. */
+                answer();
+            }
+        }
+
+        /**
+         * End the body and wait for the response to start, passing on an error response of
+         * the region as the region answered it.
+         * @return The response's lines.
+         */
+        BufferedReader finish() throws IOException {
+            try {
+                body.close();
+            } catch (IOException e) {
+                answer();
+            }
+            return answer();
+        }
+
+        /**
+         * Wait for the response to start, timed in SHARD_REQUEST.
+         * @return The response's lines, if the region answered 200.
+         */
+        private BufferedReader answer() throws IOException {
+            int status;
+            try {
+                status = post.getStatus();
+            } catch (IOException e) {
+                fail();
+                return null;
+            }
+            Metrics.SHARD_REQUEST.recordSince(start);
+            if (status != 200) {
+                halt(status, readMessage(post.getResponse()));
+            }
+            return new BufferedReader(new InputStreamReader(post.getResponse(),
+                    StandardCharsets.UTF_8));
+        }
+
+        /** Drop the connection and its spool. */
+        void close() throws IOException {
+            if (post != null) {
+                post.close();
+            }
+        }
+
+        private void fail() {
+            Metrics.SHARD_FAILURES.increment();
+            Metrics.SHARD_REQUEST.recordSince(start);
+            halt(BAD_GATEWAY, "Region " + shard.getName() + " is unavailable.");
+        }
+    }
+
+    /**
+     * Send the request's query to <code>path</code> of every region of <code>targets</code>
+     * at once, and return their Json array responses, in the order of <code>targets</code>.
+     */
+    private static List<JsonArray> fetchAll(List<RegionShard> targets, String path,
+                                            String query) throws InterruptedException {
+        List<Future<JsonElement>> responses = new ArrayList<>();
+        for (RegionShard shard : targets) {
+            responses.add(shardRequests.submit(() -> fetchJson(shard, path, query)));
+        }
+        List<JsonArray> results = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            results.add(await(responses.get(i), targets.get(i)).getAsJsonArray());
+        }
+        return results;
+    }
+
+    /**
+     * Merge the search results of several regions. Names are merged a rank at a time across
+     * the regions, each kept once; locations are kept once per id, the regions overlapping,
+     * and sorted by <code>rank</code> if one is given. At most <code>limit</code> are kept.
+     */
+    static JsonArray merge(List<JsonArray> results, Comparator<JsonObject> rank, int limit) {
+        JsonArray merged = new JsonArray();
+        Set<String> names = new LinkedHashSet<>();
+        Map<String, JsonObject> locations = new LinkedHashMap<>();
+        for (int i = 0; names.size() < limit; i++) {
+            boolean more = false;
+            for (JsonArray result : results) {
+                if (i >= result.size()) {
+                    continue;
+                }
+                more = true;
+                JsonElement found = result.get(i);
+                if (found.isJsonPrimitive()) {
+                    names.add(found.getAsString());
+                } else {
+                    locations.putIfAbsent(found.getAsJsonObject().get("id").getAsString(),
+                            found.getAsJsonObject());
+                }
+            }
+            if (!more) {
+                break;
+            }
+        }
+        for (String name : names) {
+            if (merged.size() < limit) {
+                merged.add(GSON.toJsonTree(name));
+            }
+        }
+        List<JsonObject> sorted = new ArrayList<>(locations.values());
+        if (rank != null) {
+            sorted.sort(rank);
+        }
+        for (JsonObject location : sorted) {
+            if (merged.size() < limit) {
+                merged.add(location);
+            }
+        }
+        return merged;
+    }
+
+    /** A measure of the distance of a location from {lon, lat}, for ranking. */
+    private static double distance(JsonObject location, double[] center) {
+        double dx = (location.get("lon").getAsDouble() - center[0])
+                * Math.cos(Math.toRadians(center[1]));
+        double dy = location.get("lat").getAsDouble() - center[1];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Pass the request on to <code>path</code> of <code>shard</code>, and its response back,
+     * as it arrives.
+     */
+    private static void proxy(RegionShard shard, String path, String query,
+                              spark.Response res) throws IOException {
+        HttpURLConnection conn;
+        try {
+            conn = open(shard, "GET", path, query);
+        } catch (IOException e) {
+            halt(BAD_GATEWAY, "Region " + shard.getName() + " is unavailable.");
+            return;
+        }
+        res.status(conn.getResponseCode());
+        if (conn.getContentType() != null) {
+            res.type(conn.getContentType());
+        }
+        try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream()
+                : conn.getErrorStream()) {
+            if (in == null) {
+                return;
+            }
+            OutputStream out = res.raw().getOutputStream();
+            byte[] buffer = new byte[PROXY_BUFFER_BYTES];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+                if (in.available() == 0) {
+                    /* Pass each strip of a streamed raster on as soon as it is all here. */
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * The Json response of <code>path</code> of <code>shard</code> to the query. An error
+     * response of the shard is answered with, as the shard answered it.
+     */
+    private static JsonElement fetchJson(RegionShard shard, String path, String query)
+            throws IOException {
+        HttpURLConnection conn = open(shard, "GET", path, query);
+        if (conn.getResponseCode() != 200) {
+            halt(conn.getResponseCode(), readMessage(conn.getErrorStream()));
+        }
+        try (Reader in = new InputStreamReader(conn.getInputStream(),
+                StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(in);
+        }
+    }
+
+    /**
+     * Send a request to <code>path</code> of <code>shard</code>, and wait for its response to
+     * start, timed in SHARD_REQUEST.
+     * @throws IOException If the shard could not be reached, counted in SHARD_FAILURES.
+     */
+    private static HttpURLConnection open(RegionShard shard, String method, String path,
+                                          String query) throws IOException {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection conn = connect(shard, method, path, query);
+            conn.getResponseCode();
+            return conn;
+        } catch (IOException e) {
+            Metrics.SHARD_FAILURES.increment();
+            throw e;
+        } finally {
+            Metrics.SHARD_REQUEST.recordSince(start);
+        }
+    }
+
+    /** A request to <code>path</code> of <code>shard</code>, not yet sent. */
+    private static HttpURLConnection connect(RegionShard shard, String method, String path,
+                                             String query) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) getUrl(shard, path, query)
+                .openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestMethod(method);
+        return conn;
+    }
+
+    /** The URL of <code>path</code> of <code>shard</code> with the query. */
+    private static URL getUrl(RegionShard shard, String path, String query)
+            throws MalformedURLException {
+        return new URL(shard.getUrl(), query == null || query.isEmpty() ? path
+                : path + "?" + query);
+    }
+
+    /** The body of an error response, read from <code>in</code>, if any. */
+    private static String readMessage(InputStream in) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream body = in) {
+                byte[] buffer = new byte[PROXY_BUFFER_BYTES];
+                for (int n = body.read(buffer); n >= 0; n = body.read(buffer)) {
+                    message.write(buffer, 0, n);
+                }
+            }
+        }
+        return new String(message.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The result of a request to <code>shard</code>, answering BAD_GATEWAY if it could not
+     * be reached; halts of the request's own are passed on.
+     */
+    private static <T> T await(Future<T> request, RegionShard shard)
+            throws InterruptedException {
+        try {
+            return request.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            halt(BAD_GATEWAY, "Region " + shard.getName() + " is unavailable.");
+            return null;
+        }
+    }
+
+    /**
+     * The named parameters of the request, in order; answers HALT_RESPONSE unless each is
+     * given as a number.
+     */
+    private static double[] getParams(spark.Request req, String[] names) {
+        double[] values = getOptionalParams(req, names);
+        if (values == null) {
+            halt(MapServer.HALT_RESPONSE, "Missing parameters - provide "
+                    + String.join(", ", names) + ".");
+        }
+        return values;
+    }
+
+    /**
+     * The named parameters of the request, in order, or null if any is not given; answers
+     * HALT_RESPONSE if one is not a number.
+     */
+    private static double[] getOptionalParams(spark.Request req, String[] names) {
+        double[] values = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String value = req.queryParams(names[i]);
+            if (value == null) {
+                return null;
+            }
+            try {
+                values[i] = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                halt(MapServer.HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return values;
+    }
+
+    /** The integer parameter <code>name</code>, or <code>otherwise</code> if not given. */
+    private static int getIntParam(spark.Request req, String name, int otherwise) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            halt(MapServer.HALT_RESPONSE, "Incorrect parameters - provide an integer " + name
+                    + ".");
+            return otherwise;
+        }
+    }
+
+    /** The number parameter <code>name</code>, or <code>otherwise</code> if not given. */
+    private static double getDoubleParam(spark.Request req, String name, double otherwise) {
+        double[] value = getOptionalParams(req, new String[]{name});
+        return value == null ? otherwise : value[0];
+    }
+
+    /**
+     * The {lon, lat} point a search is ranked around, as MapServer takes it: the lat and lon
+     * parameters, else the viewport's center; null if neither is given.
+     */
+    private static double[] getSearchCenter(spark.Request req) {
+        double[] center = getOptionalParams(req, MapServer.SEARCH_CENTER_PARAMS);
+        if (center != null) {
+            return new double[]{center[1], center[0]};
+        }
+        double[] viewport = getOptionalParams(req, MapServer.SEARCH_VIEWPORT_PARAMS);
+        if (viewport != null) {
+            return new double[]{(viewport[1] + viewport[3]) / 2,
+                (viewport[0] + viewport[2]) / 2};
+        }
+        return null;
+    }
+
+    /** The query string without the named parameters. */
+    static String withoutParams(String query, String[] names) {
+        if (query == null) {
+            return "";
+        }
+        Set<String> dropped = new HashSet<>(Arrays.asList(names));
+        StringJoiner kept = new StringJoiner("&");
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (!param.isEmpty()
+                    && !dropped.contains(equals < 0 ? param : param.substring(0, equals))) {
+                kept.add(param);
+            }
+        }
+        return kept.toString();
+    }
+}
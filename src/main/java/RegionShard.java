@@ -0,0 +1,169 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One region of a sharded deployment: the bounding box it covers, and the MapServer serving
+ * it, with its own tiles, graph and search index. Regions are listed in a file, a region per
+ * line, as whitespace-separated columns:<br>
+ * name ullat,ullon,lrlat,lrlon url [osm tiles]<br>
+ * A region whose OSM file and tile directory are given is served by a local process the
+ * RegionRouter starts; one without them is served by a process started some other way. Blank
+ * lines and lines starting with # are skipped. Neighbouring regions should overlap, and their
+ * OSM extracts cover the overlap, so that routes can cross between them there.
+ */
+public class RegionShard {
+
+    private final String name;
+    private final double ullat, ullon, lrlat, lrlon;
+    private final URL url;
+    /** The OSM file and tile directory of a region served by a local process, else null. */
+    private final String osm;
+    private final String tiles;
+
+    public RegionShard(String name, double[] bounds, URL url, String osm, String tiles) {
+        this.name = name;
+        this.ullat = bounds[0];
+        this.ullon = bounds[1];
+        this.lrlat = bounds[2];
+        this.lrlon = bounds[3];
+        this.url = url;
+        this.osm = osm;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Read the regions listed in the file at <code>path</code>.
+     * @throws IllegalArgumentException If a line is malformed.
+     */
+    public static List<RegionShard> readAll(String path) throws IOException {
+        List<RegionShard> shards = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber += 1;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = trimmed.split("\\s+");
+                if (fields.length != 3 && fields.length != 5) {
+                    throw new IllegalArgumentException("Malformed region on line " + lineNumber
+                            + " of " + path);
+                }
+                URL url;
+                try {
+                    url = new URL(fields[2]);
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException("Malformed URL on line " + lineNumber
+                            + " of " + path, e);
+                }
+                if (fields.length == 5 && url.getPort() < 0) {
+                    /* The process started for the region is told which port to take. */
+                    throw new IllegalArgumentException("No port in the URL on line "
+                            + lineNumber + " of " + path);
+                }
+                shards.add(new RegionShard(fields[0], parseBounds(fields[1]), url,
+                        fields.length == 5 ? fields[3] : null,
+                        fields.length == 5 ? fields[4] : null));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Parse bounds given as "ullat,ullon,lrlat,lrlon".
+     * @throws IllegalArgumentException If they are malformed or their box is empty.
+     */
+    public static double[] parseBounds(String bounds) {
+        String[] fields = bounds.split(",");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Malformed bounds: " + bounds);
+        }
+        double[] box = new double[4];
+        for (int i = 0; i < 4; i++) {
+            box[i] = Double.parseDouble(fields[i].trim());
+        }
+        if (box[0] <= box[2] || box[1] >= box[3]) {
+            throw new IllegalArgumentException("Empty bounds: " + bounds);
+        }
+        return box;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /** Whether the region is served by a process the router starts. */
+    public boolean isLocal() {
+        return osm != null;
+    }
+
+    /** Whether (lon, lat) is within the region's bounds. */
+    public boolean contains(double lon, double lat) {
+        return lon >= ullon && lon <= lrlon && lat <= ullat && lat >= lrlat;
+    }
+
+    /** Whether the box given by its corners shares any point with the region's bounds. */
+    public boolean intersects(double boxUllat, double boxUllon, double boxLrlat,
+                              double boxLrlon) {
+        return boxUllon <= lrlon && boxLrlon >= ullon && boxUllat >= lrlat && boxLrlat <= ullat;
+    }
+
+    /** The area, in square degrees, the box given by its corners shares with the region. */
+    public double overlapArea(double boxUllat, double boxUllon, double boxLrlat,
+                              double boxLrlon) {
+        double width = Math.min(lrlon, boxLrlon) - Math.max(ullon, boxUllon);
+        double height = Math.min(ullat, boxUllat) - Math.max(lrlat, boxLrlat);
+        return width <= 0 || height <= 0 ? 0 : width * height;
+    }
+
+    /**
+     * The box this region shares with <code>other</code>, as {ullat, ullon, lrlat, lrlon}, or
+     * null if they do not meet. Regions that only touch share a box of no width or height.
+     */
+    public double[] border(RegionShard other) {
+        if (!intersects(other.ullat, other.ullon, other.lrlat, other.lrlon)) {
+            return null;
+        }
+        return new double[]{Math.min(ullat, other.ullat), Math.max(ullon, other.ullon),
+            Math.max(lrlat, other.lrlat), Math.min(lrlon, other.lrlon)};
+    }
+
+    /**
+     * The command starting a MapServer for this local region, with the java executable and
+     * class path given, and each of <code>properties</code> passed on as a system property.
+     */
+    public List<String> command(String java, String classPath, Map<String, String> properties) {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(classPath);
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            command.add("-D" + e.getKey() + "=" + e.getValue());
+        }
+        command.add("-Dbearmaps.bounds=" + ullat + "," + ullon + "," + lrlat + "," + lrlon);
+        command.add("-Dbearmaps.port=" + url.getPort());
+        command.add("-Dbearmaps.osm=" + osm);
+        command.add("-Dbearmaps.tiles=" + tiles);
+        command.add("MapServer");
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + url + ")";
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides where request handlers do their work. CPU-heavy raster and route work runs on a
+ * small fixed pool behind a bounded queue, so a burst of /raster requests can occupy at most
+ * threads + queue request threads and can never starve /search; once the queue is full, new
+ * work is rejected and the caller should answer 503. I/O-bound handlers run inline on the
+ * request thread, which is a virtual thread when MapServer serves on a VirtualThreadPool.
+ */
+public class RequestExecutor {
+
+    private final ThreadPoolExecutor cpu;
+
+    /**
+     * @param cpuThreads Threads running CPU-heavy work.
+     * @param cpuQueue CPU-heavy tasks allowed to wait for a thread before new ones are rejected.
+     */
+    public RequestExecutor(int cpuThreads, int cpuQueue) {
+        AtomicInteger count = new AtomicInteger();
+        cpu = new ThreadPoolExecutor(cpuThreads, cpuThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, cpuQueue)), r -> {
+                    Thread t = new Thread(r, "raster-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Run CPU-heavy work on the bounded pool and wait for its result.
+     * @throws RejectedExecutionException If the pool's queue is full.
+     */
+    public <T> T runCpu(Callable<T> task) throws Exception {
+        return await(cpu.submit(task));
+    }
+
+    /**
+     * Start CPU-heavy work on the bounded pool without waiting for it; see await.
+     * @throws RejectedExecutionException If the pool's queue is full.
+     */
+    public <T> Future<T> submitCpu(Callable<T> task) {
+        return cpu.submit(task);
+    }
+
+    /** The number of CPU-heavy tasks queued but not yet started. */
+    public int queuedCpuTasks() {
+        return cpu.getQueue().size();
+    }
+
+    public void shutdown() {
+        cpu.shutdown();
+    }
+
+    /** Wait for work started by submitCpu, and return its result or rethrow what it threw. */
+    public static <T> T await(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            /* Rethrow what the task threw, so halt() and friends behave as if run inline. */
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The road graph in primitive arrays, for routing. Nodes are numbered 0 to size() - 1 (see
+ * GraphNode.getIndex); the edges leaving node v are firstEdge[v] to firstEdge[v + 1] - 1, each
+ * with its target, length in metres, and one weight per routing profile. Node locations are
+ * projected once, onto an equirectangular plane in metres centered on the graph, so distances
+ * are plain primitive arithmetic and a degree of longitude is as long as it is on the ground.
+ * Profiles are alternate weight arrays over the same edges, so adding one costs an array, not a
+ * graph: DISTANCE weighs edges by length, ignoring one-ways; CAR by travel time at the road's
+ * speed limit or its highway type's typical speed, honoring one-ways; WALK by travel time at
+ * walking speed on any road in either direction. Edges a profile may not use weigh infinity.
+ * Each profile also labels the graph's strongly connected components under its usable edges;
+ * nodes in the largest one are routable, as they can reach and be reached from one another.
+ */
+public class RoadGraph {
+
+    public static final int DISTANCE = 0, CAR = 1, WALK = 2;
+    private static final String[] PROFILE_NAMES = {"distance", "car", "walk"};
+    /** Whether a profile may use an edge but not its reverse; the others are symmetric. */
+    private static final boolean[] DIRECTED = {false, true, false};
+
+    /** Typical car speeds in km/h by highway type, used where no maxspeed is tagged. */
+    private static final Map<String, Float> CAR_SPEEDS = new HashMap<>();
+    private static final float DEFAULT_CAR_SPEED = 30;
+    private static final float WALK_SPEED = 5;
+    /** Metres per degree of latitude. */
+    static final double METRES_PER_DEGREE = 111_195;
+
+    /** Projection origin, and the length of a degree of longitude there. */
+    private final double originLon, originLat, metresPerDegreeLon;
+
+    static {
+        CAR_SPEEDS.put("motorway", 100f);
+        CAR_SPEEDS.put("motorway_link", 60f);
+        CAR_SPEEDS.put("trunk", 80f);
+        CAR_SPEEDS.put("trunk_link", 50f);
+        CAR_SPEEDS.put("primary", 60f);
+        CAR_SPEEDS.put("primary_link", 45f);
+        CAR_SPEEDS.put("secondary", 50f);
+        CAR_SPEEDS.put("secondary_link", 40f);
+        CAR_SPEEDS.put("tertiary", 40f);
+        CAR_SPEEDS.put("tertiary_link", 35f);
+        CAR_SPEEDS.put("unclassified", 30f);
+        CAR_SPEEDS.put("residential", 25f);
+        CAR_SPEEDS.put("living_street", 10f);
+    }
+
+    private final long[] ids;
+    /** Projected node locations: metres east and north of the origin. */
+    private final double[] xs, ys;
+    private final int[] firstEdge;
+    private final int[] edgeTarget;
+    private final float[] edgeLength;
+    /** The length of the longest edge. */
+    private final double maxLength;
+    /** The edges entering node v are inEdges[firstInEdge[v]] to inEdges[firstInEdge[v + 1] - 1]. */
+    private final int[] firstInEdge;
+    private final int[] inEdges;
+    private final int[] edgeSource;
+    /** weights[profile][edge]: metres for DISTANCE, seconds for the others. */
+    private final float[][] weights = new float[PROFILE_NAMES.length][];
+    /** Per profile, the most distance covered per unit of weight on any edge. */
+    private final double[] maxSpeed = new double[PROFILE_NAMES.length];
+    /**
+     * component[profile][v]: v's strongly connected component under the profile, numbered in
+     * reverse topological order, so an edge between components always leads to a lower number.
+     */
+    private final int[][] component = new int[PROFILE_NAMES.length][];
+    /** Per profile, the largest component, and the number of nodes in it. */
+    private final int[] mainComponent = new int[PROFILE_NAMES.length];
+    private final int[] mainComponentSize = new int[PROFILE_NAMES.length];
+
+    /**
+     * Build the graph over <code>nodes</code>, numbering them in iteration order, and keeping
+     * only connections between nodes of the collection.
+     */
+    public RoadGraph(Collection<GraphNode> nodes) {
+        int n = nodes.size();
+        ids = new long[n];
+        xs = new double[n];
+        ys = new double[n];
+        firstEdge = new int[n + 1];
+        double loLon = Double.MAX_VALUE, loLat = Double.MAX_VALUE;
+        double hiLon = -Double.MAX_VALUE, hiLat = -Double.MAX_VALUE;
+        for (GraphNode node : nodes) {
+            loLon = Math.min(loLon, node.getLoc()[0]);
+            hiLon = Math.max(hiLon, node.getLoc()[0]);
+            loLat = Math.min(loLat, node.getLoc()[1]);
+            hiLat = Math.max(hiLat, node.getLoc()[1]);
+        }
+        originLon = n == 0 ? 0 : (loLon + hiLon) / 2;
+        originLat = n == 0 ? 0 : (loLat + hiLat) / 2;
+        metresPerDegreeLon = METRES_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+        int v = 0;
+        for (GraphNode node : nodes) {
+            node.setIndex(v);
+            ids[v] = node.getID();
+            xs[v] = projectX(node.getLoc()[0]);
+            ys[v] = projectY(node.getLoc()[1]);
+            v += 1;
+        }
+        Map<Long, GraphNode> byId = new HashMap<>();
+        for (GraphNode node : nodes) {
+            byId.put(node.getID(), node);
+        }
+        int m = 0;
+        for (GraphNode node : nodes) {
+            for (Connection c : node.getConnections()) {
+                m += byId.containsKey(c.to()) ? 1 : 0;
+            }
+        }
+        edgeTarget = new int[m];
+        edgeLength = new float[m];
+        for (int p = 0; p < weights.length; p++) {
+            weights[p] = new float[m];
+        }
+        int e = 0;
+        for (GraphNode node : nodes) {
+            firstEdge[node.getIndex()] = e;
+            for (Connection c : node.getConnections()) {
+                GraphNode to = byId.get(c.to());
+                if (to == null) {
+                    continue;
+                }
+                edgeTarget[e] = to.getIndex();
+                edgeLength[e] = (float) distance(node.getIndex(), to.getIndex());
+                setWeights(e, c);
+                e += 1;
+            }
+        }
+        firstEdge[n] = m;
+        double longest = 0;
+        for (e = 0; e < m; e++) {
+            longest = Math.max(longest, edgeLength[e]);
+        }
+        maxLength = longest;
+        /* Counting sort of the edges by target, for searches that run backwards. */
+        edgeSource = new int[m];
+        firstInEdge = new int[n + 1];
+        inEdges = new int[m];
+        for (v = 0; v < n; v++) {
+            for (e = firstEdge[v]; e < firstEdge[v + 1]; e++) {
+                edgeSource[e] = v;
+                firstInEdge[edgeTarget[e] + 1] += 1;
+            }
+        }
+        for (v = 0; v < n; v++) {
+            firstInEdge[v + 1] += firstInEdge[v];
+        }
+        int[] fill = Arrays.copyOf(firstInEdge, n);
+        for (e = 0; e < m; e++) {
+            inEdges[fill[edgeTarget[e]]++] = e;
+        }
+        for (int p = 0; p < weights.length; p++) {
+            for (e = 0; e < m; e++) {
+                if (weights[p][e] > 0 && weights[p][e] < Float.POSITIVE_INFINITY) {
+                    maxSpeed[p] = Math.max(maxSpeed[p], edgeLength[e] / weights[p][e]);
+                }
+            }
+            /* Padded so float rounding of the weights cannot make lowerBound overestimate. */
+            maxSpeed[p] = maxSpeed[p] == 0 ? 1 : maxSpeed[p] * (1 + 1e-6);
+            labelComponents(p);
+        }
+    }
+
+    /**
+     * Label the strongly connected components under <code>profile</code> with Tarjan's
+     * algorithm, made iterative with an explicit call stack so long roads cannot overflow the
+     * thread's stack.
+     */
+    private void labelComponents(int profile) {
+        int n = size();
+        float[] w = weights[profile];
+        int[] comp = new int[n];
+        int[] order = new int[n];
+        int[] low = new int[n];
+        int[] nextEdge = new int[n];
+        int[] callStack = new int[n];
+        int[] tarjanStack = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(order, -1);
+        int visited = 0, components = 0, calls = 0, stacked = 0;
+        int[] sizes = new int[Math.max(1, n)];
+        for (int root = 0; root < n; root++) {
+            if (order[root] >= 0) {
+                continue;
+            }
+            order[root] = low[root] = visited++;
+            nextEdge[root] = firstEdge[root];
+            tarjanStack[stacked++] = root;
+            onStack[root] = true;
+            callStack[calls++] = root;
+            while (calls > 0) {
+                int v = callStack[calls - 1];
+                if (nextEdge[v] < firstEdge[v + 1]) {
+                    int e = nextEdge[v]++;
+                    if (w[e] == Float.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                    int t = edgeTarget[e];
+                    if (order[t] < 0) {
+                        order[t] = low[t] = visited++;
+                        nextEdge[t] = firstEdge[t];
+                        tarjanStack[stacked++] = t;
+                        onStack[t] = true;
+                        callStack[calls++] = t;
+                    } else if (onStack[t]) {
+                        low[v] = Math.min(low[v], order[t]);
+                    }
+                    continue;
+                }
+                calls -= 1;
+                if (low[v] == order[v]) {
+                    int t;
+                    do {
+                        t = tarjanStack[--stacked];
+                        onStack[t] = false;
+                        comp[t] = components;
+                        sizes[components] += 1;
+                    } while (t != v);
+                    components += 1;
+                }
+                if (calls > 0) {
+                    int parent = callStack[calls - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        component[profile] = comp;
+        for (int c = 0; c < components; c++) {
+            if (sizes[c] > mainComponentSize[profile]) {
+                mainComponent[profile] = c;
+                mainComponentSize[profile] = sizes[c];
+            }
+        }
+    }
+
+    private void setWeights(int e, Connection c) {
+        float length = edgeLength[e];
+        weights[DISTANCE][e] = length;
+        float carSpeed = c.getMaxSpeed() > 0 ? c.getMaxSpeed()
+                : CAR_SPEEDS.getOrDefault(c.getHighway(), DEFAULT_CAR_SPEED);
+        weights[CAR][e] = c.isAgainstOneway() ? Float.POSITIVE_INFINITY
+                : length / (carSpeed / 3.6f);
+        weights[WALK][e] = length / (WALK_SPEED / 3.6f);
+    }
+
+    /**
+     * The profile named <code>name</code>, or -1 if there is none.
+     */
+    public static int profile(String name) {
+        for (int p = 0; p < PROFILE_NAMES.length; p++) {
+            if (PROFILE_NAMES[p].equals(name)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    public static String profileName(int profile) {
+        return PROFILE_NAMES[profile];
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Whether <code>v</code> is in the largest strongly connected component under
+     * <code>profile</code>, so that a route under it exists to and from every other such node.
+     */
+    public boolean isRoutable(int profile, int v) {
+        return component[profile][v] == mainComponent[profile];
+    }
+
+    /** The number of routable nodes under <code>profile</code>. */
+    public int routableSize(int profile) {
+        return mainComponentSize[profile];
+    }
+
+    /**
+     * False if no path from <code>u</code> to <code>v</code> can exist under
+     * <code>profile</code>; true if one may. Exact for symmetric profiles, and for directed
+     * ones when u and v share a component.
+     */
+    public boolean mayReach(int profile, int u, int v) {
+        int cu = component[profile][u];
+        int cv = component[profile][v];
+        return cu == cv || (DIRECTED[profile] && cu > cv);
+    }
+
+    /**
+     * The factor that scales longitude degrees to ground distance in latitude degrees, at the
+     * projection origin.
+     */
+    public double lonScale() {
+        return metresPerDegreeLon / METRES_PER_DEGREE;
+    }
+
+    public long id(int v) {
+        return ids[v];
+    }
+
+    public int firstEdge(int v) {
+        return firstEdge[v];
+    }
+
+    /** One past the last edge leaving <code>v</code>. */
+    public int lastEdge(int v) {
+        return firstEdge[v + 1];
+    }
+
+    public int target(int e) {
+        return edgeTarget[e];
+    }
+
+    public int source(int e) {
+        return edgeSource[e];
+    }
+
+    public int firstInEdge(int v) {
+        return firstInEdge[v];
+    }
+
+    /** One past the last incoming edge of <code>v</code>. */
+    public int lastInEdge(int v) {
+        return firstInEdge[v + 1];
+    }
+
+    /** The <code>i</code>th incoming edge, in the order of firstInEdge. */
+    public int inEdge(int i) {
+        return inEdges[i];
+    }
+
+    public float length(int e) {
+        return edgeLength[e];
+    }
+
+    /** The length of the longest edge, in metres. */
+    public double maxLength() {
+        return maxLength;
+    }
+
+    public float[] weights(int profile) {
+        return weights[profile];
+    }
+
+    /** Metres east of the projection origin of longitude <code>lon</code>. */
+    public double projectX(double lon) {
+        return (lon - originLon) * metresPerDegreeLon;
+    }
+
+    /** Metres north of the projection origin of latitude <code>lat</code>. */
+    public double projectY(double lat) {
+        return (lat - originLat) * METRES_PER_DEGREE;
+    }
+
+    /** Longitude of the point <code>x</code> metres east of the projection origin. */
+    public double unprojectX(double x) {
+        return originLon + x / metresPerDegreeLon;
+    }
+
+    /** Latitude of the point <code>y</code> metres north of the projection origin. */
+    public double unprojectY(double y) {
+        return originLat + y / METRES_PER_DEGREE;
+    }
+
+    public double x(int v) {
+        return xs[v];
+    }
+
+    public double y(int v) {
+        return ys[v];
+    }
+
+    /**
+     * Straight-line distance between nodes <code>u</code> and <code>v</code>, in metres.
+     */
+    public double distance(int u, int v) {
+        double dx = xs[u] - xs[v];
+        double dy = ys[u] - ys[v];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Squared straight-line distance from node <code>v</code> to the projected point (x, y),
+     * in square metres; for comparing distances without a square root.
+     */
+    public double distanceSquared(int v, double x, double y) {
+        double dx = xs[v] - x;
+        double dy = ys[v] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * A lower bound on the weight of any path from <code>u</code> to <code>v</code> under
+     * <code>profile</code>: their straight-line distance at the profile's top speed.
+     */
+    public double lowerBound(int profile, int u, int v) {
+        return distance(u, v) / maxSpeed[profile];
+    }
+
+    /** The profile's top speed, in metres per unit of weight; see lowerBound. */
+    public double maxSpeed(int profile) {
+        return maxSpeed[profile];
+    }
+}
@@ -0,0 +1,166 @@
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route ready to be drawn onto rastered images. The node locations are looked up once; each
+ * draw projects them to pixels, keeps only the runs of segments that touch the image, simplifies
+ * those runs with Douglas-Peucker to within SIMPLIFY_TOLERANCE_PX, and strokes the result as a
+ * single Path2D. Long routes viewed at deep zoom therefore cost little beyond the projection.
+ */
+public class RouteOverlay {
+
+    /** Points closer than this to the simplified line are dropped; invisible below a pixel. */
+    private static final double SIMPLIFY_TOLERANCE_PX = 0.5;
+
+    private final String id;
+    private final double[] lons;
+    private final double[] lats;
+
+    /**
+     * @param id Route id, naming this route in caches.
+     * @param path Node ids of the route, in order.
+     * @param nodes Lookup from node id to node.
+     */
+    public RouteOverlay(String id, List<Long> path, Map<Long, GraphNode> nodes) {
+        this.id = id;
+        lons = new double[path.size()];
+        lats = new double[path.size()];
+        for (int i = 0; i < path.size(); i++) {
+            double[] loc = nodes.get(path.get(i)).getLoc();
+            lons[i] = loc[0];
+            lats[i] = loc[1];
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int size() {
+        return lons.length;
+    }
+
+    /**
+     * Draw the route onto <code>g</code>, an image of <code>width</code> by <code>height</code>
+     * pixels whose corners are at the given longitudes and latitudes, using ROUTE_STROKE_COLOR,
+     * ROUTE_STROKE_WIDTH_PX and round caps and joins.
+     * @return Whether any of the route was visible, and so drawn.
+     */
+    public boolean draw(Graphics2D g, int width, int height, double ulLon, double ulLat,
+                        double lrLon, double lrLat) {
+        Path2D.Double route = toPixelPath(width, height, ulLon, ulLat, lrLon, lrLat);
+        if (route == null) {
+            return false;
+        }
+        /* Aliased, as the reference rasters were drawn; it is also the cheaper option. */
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g.draw(route);
+        return true;
+    }
+
+    /**
+     * Project the route into pixel space, clipped to the image and simplified.
+     * @return The visible part of the route, or null if none of it is visible.
+     */
+    Path2D.Double toPixelPath(int width, int height, double ulLon, double ulLat,
+                              double lrLon, double lrLat) {
+        int n = lons.length;
+        if (n < 2) {
+            return null;
+        }
+        double lonPerPx = Math.abs(lrLon - ulLon) / width;
+        double latPerPx = Math.abs(lrLat - ulLat) / height;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        /* Truncated to whole pixels, as the reference rasters were drawn. */
+        for (int i = 0; i < n; i++) {
+            xs[i] = (int) ((lons[i] - ulLon) / lonPerPx);
+            ys[i] = (int) ((ulLat - lats[i]) / latPerPx);
+        }
+
+        /* A segment can only leave paint on the image if it passes within a stroke width. */
+        double pad = MapServer.ROUTE_STROKE_WIDTH_PX;
+        double minX = -pad, minY = -pad, maxX = width + pad, maxY = height + pad;
+        Path2D.Double route = new Path2D.Double(Path2D.WIND_NON_ZERO, n);
+        boolean[] keep = new boolean[n];
+        boolean any = false;
+        int runStart = -1;
+        for (int i = 0; i < n - 1; i++) {
+            boolean visible = Math.max(xs[i], xs[i + 1]) >= minX
+                    && Math.min(xs[i], xs[i + 1]) <= maxX
+                    && Math.max(ys[i], ys[i + 1]) >= minY
+                    && Math.min(ys[i], ys[i + 1]) <= maxY;
+            if (visible && runStart < 0) {
+                runStart = i;
+            }
+            if (runStart >= 0 && (!visible || i == n - 2)) {
+                int runEnd = visible ? i + 1 : i;
+                appendSimplified(route, xs, ys, runStart, runEnd, keep);
+                any = true;
+                runStart = -1;
+            }
+        }
+        return any ? route : null;
+    }
+
+    /**
+     * Append points <code>from</code> to <code>to</code> (inclusive) as a subpath, dropping those
+     * Douglas-Peucker finds within SIMPLIFY_TOLERANCE_PX of the simplified line.
+     */
+    private static void appendSimplified(Path2D.Double route, double[] xs, double[] ys,
+                                         int from, int to, boolean[] keep) {
+        keep[from] = true;
+        keep[to] = true;
+        /* Iterative, with an explicit stack of index ranges still to be examined. */
+        int[] stack = new int[2 * (to - from + 1)];
+        int top = 0;
+        stack[top++] = from;
+        stack[top++] = to;
+        double tolerance2 = SIMPLIFY_TOLERANCE_PX * SIMPLIFY_TOLERANCE_PX;
+        while (top > 0) {
+            int hi = stack[--top];
+            int lo = stack[--top];
+            double dx = xs[hi] - xs[lo];
+            double dy = ys[hi] - ys[lo];
+            double len2 = dx * dx + dy * dy;
+            int farthest = -1;
+            double farthest2 = tolerance2;
+            for (int i = lo + 1; i < hi; i++) {
+                double d2 = distanceToSegment2(xs[i], ys[i], xs[lo], ys[lo], dx, dy, len2);
+                if (d2 > farthest2) {
+                    farthest = i;
+                    farthest2 = d2;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                stack[top++] = lo;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = hi;
+            }
+        }
+        route.moveTo(xs[from], ys[from]);
+        for (int i = from + 1; i <= to; i++) {
+            if (keep[i]) {
+                route.lineTo(xs[i], ys[i]);
+            }
+        }
+    }
+
+    private static double distanceToSegment2(double px, double py, double ax, double ay,
+                                             double dx, double dy, double len2) {
+        double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,98 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Caches routes and their overlays rendered per tile, so that panning along an active route
+ * reuses both: the route is computed once per pair of snapped endpoints and profile (its route
+ * id), and each tile's overlay once per route, then composited over the base tile like another
+ * tile image. Overlay tiles are stored as 1-bit images whose only opaque color is
+ * ROUTE_STROKE_COLOR, 8KB per tile; tiles the route does not touch are remembered without an
+ * image at all.
+ */
+public class RouteTiles {
+
+    /** Two-entry palette: transparent, and the route stroke color. */
+    private static final IndexColorModel OVERLAY_COLORS;
+    /** Stands in for tiles the route does not touch. */
+    private static final BufferedImage EMPTY = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+    static {
+        Color c = MapServer.ROUTE_STROKE_COLOR;
+        OVERLAY_COLORS = new IndexColorModel(1, 2, new byte[]{0, (byte) c.getRed()},
+                new byte[]{0, (byte) c.getGreen()}, new byte[]{0, (byte) c.getBlue()},
+                new byte[]{0, (byte) c.getAlpha()});
+    }
+
+    private final LruCache<String, RouteOverlay> routes;
+    private final LruCache<String, BufferedImage> tiles;
+
+    public RouteTiles(int maxRoutes, int maxTiles) {
+        routes = new LruCache<>(maxRoutes);
+        tiles = new LruCache<>(maxTiles);
+    }
+
+    /**
+     * Route id for the route between two snapped endpoints under a RoadGraph profile.
+     */
+    public static String routeId(GraphNode start, GraphNode end, int profile) {
+        return start.getID() + "-" + end.getID() + "-" + RoadGraph.profileName(profile);
+    }
+
+    /**
+     * Return the cached route for <code>routeId</code>, or null on a miss.
+     */
+    public RouteOverlay route(String routeId) {
+        return routes.get(routeId);
+    }
+
+    /** Cache <code>route</code> under its route id. */
+    public void addRoute(RouteOverlay route) {
+        routes.put(route.getId(), route);
+    }
+
+    /**
+     * Return the overlay of <code>route</code> for <code>tile</code>, rendering it on a miss,
+     * or null if the route does not touch the tile.
+     */
+    public BufferedImage tile(RouteOverlay route, QuadTreeNode tile) {
+        BufferedImage overlay = tiles.get(route.getId() + "/" + tile.getFileName(),
+                k -> render(route, tile));
+        return overlay == EMPTY ? null : overlay;
+    }
+
+    public void clear() {
+        routes.clear();
+        tiles.clear();
+    }
+
+    private static BufferedImage render(RouteOverlay route, QuadTreeNode tile) {
+        int size = MapServer.TILE_SIZE;
+        BufferedImage argb = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = argb.createGraphics();
+        boolean drawn = route.draw(g, size, size, tile.getUpperLeft()[0], tile.getUpperLeft()[1],
+                tile.getLowerRight()[0], tile.getLowerRight()[1]);
+        g.dispose();
+        if (!drawn) {
+            return EMPTY;
+        }
+        /* Aliased drawing leaves each pixel either untouched or exactly the route color. */
+        BufferedImage overlay = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY,
+                OVERLAY_COLORS);
+        WritableRaster bits = overlay.getRaster();
+        int[] row = new int[size];
+        boolean any = false;
+        for (int y = 0; y < size; y++) {
+            argb.getRGB(0, y, size, 1, row, 0, size);
+            for (int x = 0; x < size; x++) {
+                if (row[x] >>> 24 != 0) {
+                    bits.setSample(x, y, 0, 1);
+                    any = true;
+                }
+            }
+        }
+        return any ? overlay : EMPTY;
+    }
+}
@@ -0,0 +1,555 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shortest-path searches over a RoadGraph. Searches keep their labels in flat arrays indexed
+ * by node, reused across searches on the same thread: a label counts only if its stamp matches
+ * the current search, so starting a search is O(1) rather than clearing or allocating
+ * anything per node.
+ */
+public class Router {
+
+    /** Alternative routes weigh at most this many times the shortest route. */
+    private static final double MAX_STRETCH = 1.25;
+    /**
+     * An alternative must be a shortest path over a stretch (its plateau) weighing at least
+     * this fraction of the shortest route, so it makes no pointless detours.
+     */
+    private static final double MIN_PLATEAU = 0.25;
+
+    private final RoadGraph graph;
+    private final ThreadLocal<SearchState> states;
+    /** Labels of the backward half of bidirectional searches. */
+    private final ThreadLocal<SearchState> backwardStates;
+
+    public Router(RoadGraph graph) {
+        this.graph = graph;
+        this.states = ThreadLocal.withInitial(() -> new SearchState(graph.size()));
+        this.backwardStates = ThreadLocal.withInitial(() -> new SearchState(graph.size()));
+    }
+
+    public RoadGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * A* from node <code>from</code> to node <code>to</code> under <code>profile</code>,
+     * guided by RoadGraph.lowerBound.
+     * @return The node indices of the lowest-weight path, from first to last, or null if
+     * <code>to</code> cannot be reached.
+     */
+    public int[] shortestPath(int from, int to, int profile) {
+        /* Nodes in different components are turned away without searching either one. */
+        if (!graph.mayReach(profile, from, to)) {
+            return null;
+        }
+        float[] weights = graph.weights(profile);
+        /* lowerBound, with the target's location and the division hoisted out of the loop. */
+        double toX = graph.x(to);
+        double toY = graph.y(to);
+        double perMetre = 1 / graph.maxSpeed(profile);
+        SearchState s = states.get();
+        s.reset();
+        s.label(from, 0, -1);
+        s.heap.push(from, graph.lowerBound(profile, from, to));
+        int settled = 0;
+        while (!s.heap.isEmpty()) {
+            int v = s.heap.pop();
+            if (s.isSettled(v)) {
+                continue;
+            }
+            s.settle(v);
+            settled += 1;
+            if (v == to) {
+                break;
+            }
+            double dv = s.dist[v];
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                int w = graph.target(e);
+                double dw = dv + weights[e];
+                if (dw < s.distance(w) && !s.isSettled(w)) {
+                    s.label(w, dw, v);
+                    double dx = graph.x(w) - toX;
+                    double dy = graph.y(w) - toY;
+                    s.heap.push(w, dw + Math.sqrt(dx * dx + dy * dy) * perMetre);
+                }
+            }
+        }
+        Metrics.NODES_SETTLED.add(settled);
+        if (!s.isSettled(to)) {
+            return null;
+        }
+        int length = 1;
+        for (int v = to; v != from; v = s.prev[v]) {
+            length += 1;
+        }
+        int[] path = new int[length];
+        for (int v = to, i = length - 1; i >= 0; v = s.prev[v], i--) {
+            path[i] = v;
+        }
+        return path;
+    }
+
+    /**
+     * Everything reachable from <code>from</code> within <code>limit</code> under
+     * <code>profile</code>: a Dijkstra that never labels a node beyond the limit, so it stops
+     * as soon as the area is covered. Edges leaving a reached node count as far along as the
+     * remaining weight takes them.
+     */
+    public Isochrone reachable(int from, int profile, double limit) {
+        float[] weights = graph.weights(profile);
+        SearchState s = states.get();
+        s.reset();
+        s.label(from, 0, -1);
+        s.heap.push(from, 0);
+        while (!s.heap.isEmpty()) {
+            int v = s.heap.pop();
+            if (s.isSettled(v)) {
+                continue;
+            }
+            s.settle(v);
+            double dv = s.dist[v];
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                int w = graph.target(e);
+                double dw = dv + weights[e];
+                if (dw <= limit && dw < s.distance(w) && !s.isSettled(w)) {
+                    s.label(w, dw, v);
+                    s.heap.push(w, dw);
+                }
+            }
+        }
+        Metrics.NODES_SETTLED.add(s.settledCount);
+        int[] nodes = Arrays.copyOf(s.settledNodes, s.settledCount);
+        int m = 0;
+        for (int v : nodes) {
+            m += graph.lastEdge(v) - graph.firstEdge(v);
+        }
+        int[] edges = new int[m];
+        float[] reach = new float[m];
+        m = 0;
+        for (int v : nodes) {
+            double left = limit - s.dist[v];
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                edges[m] = e;
+                reach[m++] = weights[e] == 0 ? 1 : (float) Math.min(1, left / weights[e]);
+            }
+        }
+        return new Isochrone(graph, nodes, edges, reach);
+    }
+
+    /**
+     * The route lengths in metres from <code>from</code> to each of the first
+     * <code>count</code> of <code>targets</code>, over the edges usable under
+     * <code>profile</code>: a Dijkstra on edge length that stops once every target is settled,
+     * or once nothing within <code>maxLength</code> is left.
+     * @param lengths Receives each target's route length, or infinity if it is further than
+     *                <code>maxLength</code> or cannot be reached.
+     */
+    public void lengthsTo(int from, int profile, double maxLength, int[] targets, int count,
+                          double[] lengths) {
+        float[] weights = graph.weights(profile);
+        SearchState s = states.get();
+        s.reset();
+        s.newMark();
+        int remaining = 0;
+        for (int i = 0; i < count; i++) {
+            if (!s.isMarked(targets[i])) {
+                s.mark(targets[i]);
+                remaining += 1;
+            }
+        }
+        s.label(from, 0, -1);
+        s.heap.push(from, 0);
+        while (!s.heap.isEmpty() && remaining > 0) {
+            int v = s.heap.pop();
+            if (s.isSettled(v)) {
+                continue;
+            }
+            s.settle(v);
+            remaining -= s.isMarked(v) ? 1 : 0;
+            double dv = s.dist[v];
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                int w = graph.target(e);
+                double dw = dv + graph.length(e);
+                if (dw <= maxLength && weights[e] < Float.POSITIVE_INFINITY
+                        && dw < s.distance(w) && !s.isSettled(w)) {
+                    s.label(w, dw, v);
+                    s.heap.push(w, dw);
+                }
+            }
+        }
+        Metrics.NODES_SETTLED.add(s.settledCount);
+        for (int i = 0; i < count; i++) {
+            lengths[i] = s.isSettled(targets[i]) ? s.dist[targets[i]] : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Up to <code>k</code> meaningfully different routes from <code>from</code> to
+     * <code>to</code> under <code>profile</code>, by the via-node method: a bidirectional
+     * Dijkstra finds the shortest route, then keeps growing both trees until they reach
+     * MAX_STRETCH times its weight. Every node settled from both sides is the via node of a
+     * candidate route, the forward tree's path to it followed by the backward tree's path on.
+     * Every node of a plateau, a run of edges both trees use, yields the same route, so each
+     * plateau weighing at least MIN_PLATEAU of the shortest route gives one candidate.
+     * Candidates are tried lightest first, and accepted if at most <code>maxOverlap</code> of
+     * their weight is shared with routes already accepted.
+     * @param budget How many times the nodes it took to prove the shortest route the whole
+     *               search may settle; growing the trees stops there, bounding the latency.
+     * @return The routes as node indices, the shortest first; empty if <code>to</code> cannot
+     * be reached.
+     */
+    public List<int[]> alternatives(int from, int to, int profile, int k, double maxOverlap,
+                                    double budget) {
+        List<int[]> routes = new ArrayList<>();
+        if (k <= 0 || !graph.mayReach(profile, from, to)) {
+            return routes;
+        }
+        float[] weights = graph.weights(profile);
+        SearchState f = states.get();
+        SearchState b = backwardStates.get();
+        f.reset();
+        b.reset();
+        f.label(from, 0, -1);
+        f.heap.push(from, 0);
+        b.label(to, 0, -1);
+        b.heap.push(to, 0);
+        /* The lightest route found so far runs through meet, along the current labels. */
+        double best = from == to ? 0 : Double.POSITIVE_INFINITY;
+        int meet = from == to ? from : -1;
+        double bound = Double.POSITIVE_INFINITY;
+        long settled = 0;
+        long maxSettled = Long.MAX_VALUE;
+        while (settled < maxSettled) {
+            double minF = f.heap.isEmpty() ? Double.POSITIVE_INFINITY : f.heap.peekKey();
+            double minB = b.heap.isEmpty() ? Double.POSITIVE_INFINITY : b.heap.peekKey();
+            if (best == Double.POSITIVE_INFINITY
+                    && (f.heap.isEmpty() || b.heap.isEmpty())) {
+                /* One tree is complete without meeting the other: there is no route. */
+                break;
+            }
+            if (bound == Double.POSITIVE_INFINITY && minF + minB >= best) {
+                /* The shortest route is proven; grow on for the alternatives, within budget. */
+                bound = MAX_STRETCH * best;
+                maxSettled = (long) Math.ceil(budget * settled);
+            }
+            if (Math.min(minF, minB) > bound) {
+                break;
+            }
+            boolean forward = minF <= minB;
+            SearchState s = forward ? f : b;
+            SearchState other = forward ? b : f;
+            int v = s.heap.pop();
+            if (s.isSettled(v)) {
+                continue;
+            }
+            s.settle(v);
+            settled += 1;
+            double dv = s.dist[v];
+            int first = forward ? graph.firstEdge(v) : graph.firstInEdge(v);
+            int last = forward ? graph.lastEdge(v) : graph.lastInEdge(v);
+            for (int i = first; i < last; i++) {
+                int e = forward ? i : graph.inEdge(i);
+                int w = forward ? graph.target(e) : graph.source(e);
+                double dw = dv + weights[e];
+                if (dw < s.distance(w) && !s.isSettled(w)) {
+                    s.label(w, dw, v);
+                    s.heap.push(w, dw);
+                }
+                if (s.distance(w) + other.distance(w) < best) {
+                    best = s.distance(w) + other.distance(w);
+                    meet = w;
+                }
+            }
+        }
+        Metrics.NODES_SETTLED.add(settled);
+        if (meet < 0) {
+            return routes;
+        }
+        int[] shortest = viaRoute(f, b, meet);
+        if (shortest == null) {
+            /* Only possible with zero-weight cycles; settle for the one route. */
+            routes.add(shortestPath(from, to, profile));
+            return routes;
+        }
+
+        /* Label plateaus: walking the forward tree in settling order, a node continues its
+         * parent's plateau if the backward tree uses the same edge. */
+        for (int i = 0; i < f.settledCount; i++) {
+            int w = f.settledNodes[i];
+            int u = f.prev[w];
+            boolean shared = u >= 0 && b.isSettled(w) && b.isSettled(u) && b.prev[u] == w;
+            int start = shared ? f.plateau[u] : w;
+            f.plateau[w] = start;
+            f.plateauWeight[start] = f.dist[w] - f.dist[start];
+        }
+        /* One candidate per long enough plateau, lightest route first, packed as
+         * (weight bits, plateau start) to sort. */
+        long[] candidates = new long[Math.max(1, f.settledCount)];
+        int count = 0;
+        for (int i = 0; i < f.settledCount; i++) {
+            int v = f.settledNodes[i];
+            double weight = f.dist[v] + b.dist[v];
+            if (f.plateau[v] == v && b.isSettled(v) && weight <= MAX_STRETCH * best
+                    && f.plateauWeight[v] >= MIN_PLATEAU * best) {
+                candidates[count++] = ((long) Float.floatToIntBits((float) weight) << 32) | v;
+            }
+        }
+        Arrays.sort(candidates, 0, count);
+        List<long[]> acceptedEdges = new ArrayList<>();
+        routes.add(shortest);
+        acceptedEdges.add(edgeKeys(shortest));
+        for (int c = 0; c < count && routes.size() < k; c++) {
+            int via = (int) candidates[c];
+            int[] route = viaRoute(f, b, via);
+            if (route != null && sharedWeight(f, b, route, f.pathLength(via) - 1,
+                    acceptedEdges) <= maxOverlap * (f.dist[via] + b.dist[via])) {
+                routes.add(route);
+                acceptedEdges.add(edgeKeys(route));
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * The weight of <code>route</code> under <code>profile</code>, taking the lightest edge
+     * between each pair of consecutive nodes.
+     */
+    public double weight(int[] route, int profile) {
+        float[] weights = graph.weights(profile);
+        double total = 0;
+        for (int i = 0; i + 1 < route.length; i++) {
+            float lightest = Float.POSITIVE_INFINITY;
+            for (int e = graph.firstEdge(route[i]); e < graph.lastEdge(route[i]); e++) {
+                if (graph.target(e) == route[i + 1]) {
+                    lightest = Math.min(lightest, weights[e]);
+                }
+            }
+            total += lightest;
+        }
+        return total;
+    }
+
+    /** The length of <code>route</code> in metres. */
+    public double length(int[] route) {
+        double total = 0;
+        for (int i = 0; i + 1 < route.length; i++) {
+            total += graph.distance(route[i], route[i + 1]);
+        }
+        return total;
+    }
+
+    /**
+     * The route through <code>via</code>: the forward tree's path to it, then the backward
+     * tree's path on; null if the two halves cross, since then it is not a simple path.
+     */
+    private int[] viaRoute(SearchState f, SearchState b, int via) {
+        int head = f.pathLength(via);
+        int[] route = new int[head + b.pathLength(via) - 1];
+        f.newMark();
+        int i = head - 1;
+        for (int v = via; v >= 0; v = f.prev[v]) {
+            route[i--] = v;
+            f.mark(v);
+        }
+        i = head;
+        for (int v = b.prev[via]; v >= 0; v = b.prev[v]) {
+            if (f.isMarked(v)) {
+                return null;
+            }
+            route[i++] = v;
+        }
+        return route;
+    }
+
+    /**
+     * The weight of the edges of <code>route</code> that some accepted route also uses. The
+     * route's via node is at index <code>at</code>: edges before it are weighed by the forward
+     * tree's labels, those after by the backward tree's.
+     */
+    private double sharedWeight(SearchState f, SearchState b, int[] route, int at,
+                                List<long[]> acceptedEdges) {
+        double shared = 0;
+        for (int i = 0; i + 1 < route.length; i++) {
+            long key = edgeKey(route[i], route[i + 1]);
+            for (long[] edges : acceptedEdges) {
+                if (Arrays.binarySearch(edges, key) >= 0) {
+                    shared += i < at ? f.dist[route[i + 1]] - f.dist[route[i]]
+                            : b.dist[route[i]] - b.dist[route[i + 1]];
+                    break;
+                }
+            }
+        }
+        return shared;
+    }
+
+    private long[] edgeKeys(int[] route) {
+        long[] keys = new long[Math.max(0, route.length - 1)];
+        for (int i = 0; i + 1 < route.length; i++) {
+            keys[i] = edgeKey(route[i], route[i + 1]);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private long edgeKey(int u, int v) {
+        return (long) u * graph.size() + v;
+    }
+
+    /**
+     * Per-thread search labels. dist and prev of node v are valid only while
+     * labelled[v] == stamp; v is settled while settled[v] == stamp.
+     */
+    static final class SearchState {
+        final double[] dist;
+        final int[] prev;
+        final int[] labelled;
+        final int[] settled;
+        /** The nodes settled so far, in the order they were settled. */
+        final int[] settledNodes;
+        int settledCount = 0;
+        /** Scratch marks for callers, cleared by newMark rather than by the search stamp. */
+        final int[] marked;
+        /** For alternatives: the first node of each settled node's plateau, and its weight. */
+        final int[] plateau;
+        final double[] plateauWeight;
+        final MinHeap heap = new MinHeap();
+        int stamp = 0;
+        int markStamp = 0;
+
+        SearchState(int n) {
+            dist = new double[n];
+            prev = new int[n];
+            labelled = new int[n];
+            settled = new int[n];
+            settledNodes = new int[n];
+            marked = new int[n];
+            plateau = new int[n];
+            plateauWeight = new double[n];
+        }
+
+        void reset() {
+            heap.clear();
+            settledCount = 0;
+            stamp += 1;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(labelled, 0);
+                Arrays.fill(settled, 0);
+                stamp = 1;
+            }
+        }
+
+        void newMark() {
+            markStamp += 1;
+            if (markStamp == Integer.MAX_VALUE) {
+                Arrays.fill(marked, 0);
+                markStamp = 1;
+            }
+        }
+
+        void mark(int v) {
+            marked[v] = markStamp;
+        }
+
+        boolean isMarked(int v) {
+            return marked[v] == markStamp;
+        }
+
+        /** The number of nodes on the tree path from the search's root to v, inclusive. */
+        int pathLength(int v) {
+            int length = 0;
+            for (; v >= 0; v = prev[v]) {
+                length += 1;
+            }
+            return length;
+        }
+
+        double distance(int v) {
+            return labelled[v] == stamp ? dist[v] : Double.POSITIVE_INFINITY;
+        }
+
+        void label(int v, double d, int from) {
+            labelled[v] = stamp;
+            dist[v] = d;
+            prev[v] = from;
+        }
+
+        boolean isSettled(int v) {
+            return settled[v] == stamp;
+        }
+
+        void settle(int v) {
+            settled[v] = stamp;
+            settledNodes[settledCount++] = v;
+        }
+    }
+
+    /**
+     * Binary min-heap of node indices keyed by double, with lazy deletion: a node whose key
+     * improves is pushed again, and stale entries are skipped by the caller once settled.
+     */
+    static final class MinHeap {
+        private int[] nodes = new int[256];
+        private double[] keys = new double[256];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /** The smallest key in the heap; the heap must not be empty. */
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(int node, double key) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+                keys = Arrays.copyOf(keys, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size -= 1;
+            int node = nodes[size];
+            double key = keys[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child += 1;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+            return top;
+        }
+    }
+}
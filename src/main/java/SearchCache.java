@@ -0,0 +1,80 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Cache of serialized search responses, keyed by the cleaned query. Autocomplete traffic is
+ * heavily skewed towards short prefixes, so every key up to a given length can be precomputed
+ * once at startup and served without locking; anything longer goes through an LRU bounded both
+ * in entry count and in total bytes held.
+ */
+public class SearchCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes = 0;
+    /** Written once by precompute, then only read. */
+    private volatile Map<String, byte[]> precomputed = new HashMap<>();
+    private final LinkedHashMap<String, byte[]> recent = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SearchCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compute and pin the responses for <code>keys</code>; they are never evicted.
+     */
+    public void precompute(Collection<String> keys, Function<String, byte[]> compute) {
+        HashMap<String, byte[]> pinned = new HashMap<>();
+        for (String key : keys) {
+            pinned.put(key, compute.apply(key));
+        }
+        precomputed = pinned;
+    }
+
+    public boolean isPrecomputed(String key) {
+        return precomputed.containsKey(key);
+    }
+
+    /**
+     * Return the cached response for <code>key</code>, computing and caching it on a miss.
+     * The computation runs outside the lock, so concurrent misses on one key may both compute.
+     */
+    public byte[] get(String key, Function<String, byte[]> compute) {
+        byte[] response = precomputed.get(key);
+        if (response != null) {
+            return response;
+        }
+        synchronized (this) {
+            response = recent.get(key);
+        }
+        if (response != null) {
+            return response;
+        }
+        response = compute.apply(key);
+        put(key, response);
+        return response;
+    }
+
+    private synchronized void put(String key, byte[] response) {
+        if (response.length > maxBytes) {
+            return;
+        }
+        byte[] old = recent.put(key, response);
+        bytes += response.length - (old == null ? 0 : old.length);
+        Iterator<byte[]> eldest = recent.values().iterator();
+        while (recent.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        recent.clear();
+        bytes = 0;
+    }
+}
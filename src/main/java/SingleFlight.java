@@ -0,0 +1,68 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs at most one computation per key at a time: callers asking for a key already being
+ * computed wait for that computation and share its result, or what it threw, instead of
+ * starting their own. Nothing is kept once the computation is done, so later callers compute
+ * afresh; this only collapses bursts of identical concurrent work, such as many clients
+ * loading the same view at once. A caller that has waited longer than the timeout gives up on
+ * the computation in flight and runs its own, so a stuck computation delays its waiters but
+ * never fails them.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+    /** Counts the callers that shared another caller's computation. */
+    private final LongAdder joined;
+
+    public SingleFlight(long timeoutMillis, LongAdder joined) {
+        this.timeoutMillis = timeoutMillis;
+        this.joined = joined;
+    }
+
+    /**
+     * Return the result of <code>compute</code> for <code>key</code>, running it only if no
+     * other caller is already computing the key; otherwise wait for that caller's result.
+     * @throws Exception What the computation threw, whichever caller ran it.
+     */
+    public V run(K key, Callable<V> compute) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            try {
+                V value = compute.call();
+                flight.complete(value);
+                return value;
+            } catch (Exception | Error e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                flights.remove(key, flight);
+            }
+        }
+        joined.increment();
+        try {
+            return leader.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return compute.call();
+        } catch (ExecutionException e) {
+            /* Rethrow what the computation threw, so halt() and friends reach every caller. */
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+    }
+
+    /** The number of keys being computed. */
+    public int inFlight() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,199 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+
+/**
+ * Caches decoded tiles off the heap, as raw RGB pixels in direct ByteBuffer slabs, so the
+ * cache can hold thousands of tiles without growing the heap or the work of the collector.
+ * Each slab holds a fixed number of tile-sized slots and is allocated the first time the cache
+ * grows into it; the slots are handed out from a free list, and once every slot is taken,
+ * reclaimed by the clock algorithm, which evicts the first tile not read since the hand last
+ * passed it. Tiles are copied straight from their slot into the destination raster's pixels.
+ * <p>
+ * Slots being copied from or into are pinned, and never evicted while pinned. The index and
+ * slot bookkeeping are guarded by the cache's lock; the copies themselves run outside it.
+ * </p>
+ */
+public class TileSlabCache {
+
+    private final int tileSize;
+    private final int tilePixels;
+    private final int slotsPerSlab;
+    private final int capacity;
+    private final IntBuffer[] slabs;
+
+    /** The slot holding each cached tile, by file name. */
+    private final HashMap<String, Integer> index = new HashMap<>();
+    /** The file name of the tile in each slot, or null if the slot is not yet published. */
+    private final String[] names;
+    private final int[] pins;
+    /** Whether each slot has been read since the clock hand last passed it. */
+    private final boolean[] referenced;
+    private final int[] free;
+    private int freeCount;
+    /** Slots handed out so far; the ones past this are in slabs not yet allocated. */
+    private int used;
+    private int hand;
+
+    /**
+     * @param capacity The most tiles held.
+     * @param slotsPerSlab Tiles per slab, and so how much the cache grows by at a time.
+     * @param tileSize The width and height of the tiles, in pixels.
+     */
+    public TileSlabCache(int capacity, int slotsPerSlab, int tileSize) {
+        this.capacity = capacity;
+        this.slotsPerSlab = slotsPerSlab;
+        this.tileSize = tileSize;
+        tilePixels = tileSize * tileSize;
+        slabs = new IntBuffer[(capacity + slotsPerSlab - 1) / slotsPerSlab];
+        names = new String[capacity];
+        pins = new int[capacity];
+        referenced = new boolean[capacity];
+        free = new int[capacity];
+    }
+
+    /**
+     * Copy the tile named <code>fileName</code>, if cached, into <code>dst</code>, a
+     * TYPE_INT_RGB image, with its upper left corner at (x, y) and clipped to the image.
+     * @return False on a miss, in which case nothing is drawn.
+     */
+    public boolean drawCached(String fileName, BufferedImage dst, int x, int y) {
+        int slot = pin(fileName);
+        if (slot < 0) {
+            Metrics.TILE_CACHE_MISSES.increment();
+            return false;
+        }
+        Metrics.TILE_CACHE_HITS.increment();
+        try {
+            IntBuffer pixels = slabs[slot / slotsPerSlab].duplicate();
+            copyRows(pixels, (slot % slotsPerSlab) * tilePixels, dst, x, y);
+        } finally {
+            unpin(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Draw <code>tile</code>, just decoded, into <code>dst</code> as drawCached does, and
+     * cache it under <code>fileName</code> unless every slot is pinned.
+     */
+    public void draw(String fileName, BufferedImage tile, BufferedImage dst, int x, int y) {
+        if (tile.getWidth() != tileSize || tile.getHeight() != tileSize) {
+            /* Not a tile this cache has slots for; draw it as it is. */
+            dst.getGraphics().drawImage(tile, x, y, null);
+            return;
+        }
+        int[] rgb = tile.getRGB(0, 0, tileSize, tileSize, null, 0, tileSize);
+        copyRows(IntBuffer.wrap(rgb), 0, dst, x, y);
+        int slot = allocate();
+        if (slot >= 0) {
+            IntBuffer pixels = slabs[slot / slotsPerSlab].duplicate();
+            pixels.position((slot % slotsPerSlab) * tilePixels);
+            pixels.put(rgb);
+            publish(fileName, slot);
+        }
+    }
+
+    /** The number of tiles cached. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** The bytes of direct memory taken by the slabs allocated so far. */
+    public synchronized long offHeapBytes() {
+        return (long) ((used + slotsPerSlab - 1) / slotsPerSlab) * slotsPerSlab * tilePixels * 4;
+    }
+
+    /**
+     * Copy the tile whose pixels start at <code>base</code> in <code>pixels</code> into
+     * <code>dst</code> at (x, y), a row at a time.
+     */
+    private void copyRows(IntBuffer pixels, int base, BufferedImage dst, int x, int y) {
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        int width = dst.getWidth();
+        int columns = Math.min(tileSize, width - x);
+        int rows = Math.min(tileSize, dst.getHeight() - y);
+        for (int row = 0; row < rows; row++) {
+            pixels.position(base + row * tileSize);
+            pixels.get(out, (y + row) * width + x, columns);
+        }
+    }
+
+    /** Pin and return the slot of the tile named <code>fileName</code>, or -1 on a miss. */
+    private synchronized int pin(String fileName) {
+        Integer slot = index.get(fileName);
+        if (slot == null) {
+            return -1;
+        }
+        pins[slot]++;
+        referenced[slot] = true;
+        return slot;
+    }
+
+    private synchronized void unpin(int slot) {
+        pins[slot]--;
+    }
+
+    /**
+     * Take a slot for a new tile, pinned and unpublished: a free one, else one in a new or
+     * partly used slab, else the one the clock evicts; -1 if every slot is pinned.
+     */
+    private synchronized int allocate() {
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else if (used < capacity) {
+            slot = used++;
+            if (slabs[slot / slotsPerSlab] == null) {
+                int slabPixels = Math.min(slotsPerSlab, capacity - slot) * tilePixels;
+                slabs[slot / slotsPerSlab] = ByteBuffer.allocateDirect(slabPixels * 4)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } else {
+            slot = evict();
+            if (slot < 0) {
+                return -1;
+            }
+        }
+        pins[slot] = 1;
+        referenced[slot] = true;
+        return slot;
+    }
+
+    /** Evict and return the slot of the clock's choice, or -1 if every slot is pinned. */
+    private int evict() {
+        /* Two sweeps clear every reference bit, so a slot is found unless all are pinned. */
+        for (int i = 0; i < 2 * capacity; i++) {
+            int slot = hand;
+            hand = (hand + 1) % capacity;
+            if (pins[slot] > 0 || names[slot] == null) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            index.remove(names[slot]);
+            names[slot] = null;
+            return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Make the tile written into <code>slot</code> visible under <code>fileName</code> and
+     * unpin the slot, or free the slot if another caller cached the tile meanwhile.
+     */
+    private synchronized void publish(String fileName, int slot) {
+        pins[slot] = 0;
+        if (index.containsKey(fileName)) {
+            free[freeCount++] = slot;
+            return;
+        }
+        index.put(fileName, slot);
+        names[slot] = fileName;
+    }
+}
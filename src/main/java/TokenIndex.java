@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Inverted index from the words of location names to the locations carrying them, so that a
+ * search can match any word of a name rather than only its start ("pizza" finds "Blaze Pizza").
+ * Names are cleaned with GraphDB.cleanString and split on spaces. The index is built once and
+ * stored flat: a sorted term array, and one int array holding every postings list back to back
+ * in ascending document order. Its size is one int per distinct (name, word) pair plus the terms.
+ */
+public class TokenIndex {
+
+    private final GraphNode[] docs;
+    /** Sorted, distinct words. */
+    private final String[] terms;
+    /** Postings of terms[t] are postings[postingStart[t] .. postingStart[t + 1]). */
+    private final int[] postingStart;
+    private final int[] postings;
+
+    public TokenIndex(Collection<GraphNode> nodes) {
+        docs = nodes.toArray(new GraphNode[0]);
+
+        /* First pass: count the documents each word appears in. */
+        HashMap<String, int[]> counts = new HashMap<>();
+        for (int d = 0; d < docs.length; d++) {
+            for (String word : distinctWords(docs[d].getCleanName())) {
+                counts.computeIfAbsent(word, w -> new int[1])[0] += 1;
+            }
+        }
+        terms = counts.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        postingStart = new int[terms.length + 1];
+        for (int t = 0; t < terms.length; t++) {
+            postingStart[t + 1] = postingStart[t] + counts.get(terms[t])[0];
+        }
+
+        /* Second pass: fill the postings in document order, so each list comes out sorted. */
+        postings = new int[postingStart[terms.length]];
+        int[] fill = new int[terms.length];
+        for (int d = 0; d < docs.length; d++) {
+            for (String word : distinctWords(docs[d].getCleanName())) {
+                int t = Arrays.binarySearch(terms, word);
+                postings[postingStart[t] + fill[t]++] = d;
+            }
+        }
+    }
+
+    /**
+     * Find the locations whose name contains every word of <code>query</code>. The last word is
+     * matched as a prefix unless the query ends in a space, so partially typed words still match.
+     * @param query Words to be searched for; any case, with or without punctuation.
+     * @return The matching locations, in index order.
+     */
+    public List<GraphNode> search(String query) {
+        List<GraphNode> results = new ArrayList<>();
+        String clean = GraphDB.cleanString(query);
+        String[] words = clean.trim().split(" +");
+        if (words[0].isEmpty()) {
+            return results;
+        }
+        boolean prefixLast = !clean.endsWith(" ");
+        int exactWords = prefixLast ? words.length - 1 : words.length;
+
+        /* Intersect the exact words' postings, smallest list first. */
+        int[][] lists = new int[exactWords][];
+        for (int i = 0; i < exactWords; i++) {
+            int t = Arrays.binarySearch(terms, words[i]);
+            if (t < 0) {
+                return results;
+            }
+            lists[i] = Arrays.copyOfRange(postings, postingStart[t], postingStart[t + 1]);
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int[] matches = null;
+        for (int[] list : lists) {
+            matches = matches == null ? list : intersect(matches, list);
+        }
+
+        if (prefixLast) {
+            String prefix = words[words.length - 1];
+            if (matches == null) {
+                matches = prefixPostings(prefix);
+            } else {
+                /* The candidates are already few; check their names rather than expand. */
+                int n = 0;
+                for (int d : matches) {
+                    if ((" " + docs[d].getCleanName()).contains(" " + prefix)) {
+                        matches[n++] = d;
+                    }
+                }
+                matches = Arrays.copyOf(matches, n);
+            }
+        }
+        for (int d : matches) {
+            results.add(docs[d]);
+        }
+        return results;
+    }
+
+    /**
+     * Union of the postings of every term starting with <code>prefix</code>, sorted.
+     */
+    private int[] prefixPostings(String prefix) {
+        int lo = lowerBound(prefix);
+        int hi = lowerBound(prefix + Character.MAX_VALUE);
+        if (hi - lo == 1) {
+            return Arrays.copyOfRange(postings, postingStart[lo], postingStart[hi]);
+        }
+        BitSet union = new BitSet(docs.length);
+        for (int p = postingStart[lo]; p < postingStart[hi]; p++) {
+            union.set(postings[p]);
+        }
+        return union.stream().toArray();
+    }
+
+    /** Index of the first term not less than <code>key</code>. */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = terms.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Intersect two sorted arrays. Each element of the shorter one is located in the longer one
+     * by galloping forward from the previous match, which is fast for very uneven lengths.
+     */
+    static int[] intersect(int[] small, int[] large) {
+        if (small.length > large.length) {
+            int[] tmp = small;
+            small = large;
+            large = tmp;
+        }
+        int[] out = new int[small.length];
+        int n = 0;
+        int base = 0;
+        for (int x : small) {
+            int step = 1;
+            int hi = base;
+            while (hi < large.length && large[hi] < x) {
+                base = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(large, base, Math.min(hi + 1, large.length), x);
+            if (found >= 0) {
+                out[n++] = x;
+                base = found + 1;
+            } else {
+                base = -found - 1;
+            }
+            if (base >= large.length) {
+                break;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static String[] distinctWords(String cleanName) {
+        String[] words = cleanName.trim().split(" +");
+        if (words[0].isEmpty()) {
+            return new String[0];
+        }
+        return Arrays.stream(words).distinct().toArray(String[]::new);
+    }
+}
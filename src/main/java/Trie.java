@@ -48,6 +48,29 @@ public class Trie {
 
     }
 
+    /**
+     * Like lookupPrefix, but collecting at most <code>max</code> names, and returning an empty
+     * list if no name starts with the prefix.
+     */
+    public List<String> lookupPrefix(String prefix, int max) {
+        HashMap<Character, TrieNode> currMap = myStartingLetters;
+        prefix = prefix.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        List<String> words = new ArrayList<>();
+        if (prefix.isEmpty()) {
+            return words;
+        }
+        TrieNode next = null;
+        for (int i = 0; i < prefix.length(); i++) {
+            next = currMap.get(prefix.charAt(i));
+            if (next == null) {
+                return words;
+            }
+            currMap = next.myNextLetters;
+        }
+        next.getTerminalNodes(next, words, max);
+        return words;
+    }
+
     public HashSet<GraphNode> lookup(String location) {
 
         HashMap<Character, TrieNode> currMap = myStartingLetters;
@@ -92,6 +115,18 @@ public class Trie {
             }
         }
 
+        private void getTerminalNodes(TrieNode curr, List<String> terminal, int max) {
+            if (curr.getLocationName() != null && terminal.size() < max) {
+                terminal.add(curr.getLocationName());
+            }
+            for (TrieNode nextTrieNode : curr.myNextLetters.values()) {
+                if (terminal.size() >= max) {
+                    return;
+                }
+                getTerminalNodes(nextTrieNode, terminal, max);
+            }
+        }
+
         public void setLocation(String name, GraphNode info) {
             locationName = name;
             locationInfo.add(info);
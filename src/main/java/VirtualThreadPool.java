@@ -0,0 +1,83 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on a virtual thread of its own, so a request
+ * handler blocked on I/O, or waiting on the raster pool, holds no platform thread. MapServer
+ * serves HTTP on it when the system property bearmaps.virtualThreads is set and the JVM has
+ * virtual threads (Java 21+); CPU-heavy work still runs on the bounded raster pool.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private final ExecutorService threads;
+    private final AtomicInteger running = new AtomicInteger();
+
+    private VirtualThreadPool(ExecutorService threads) {
+        this.threads = threads;
+    }
+
+    /** A pool of virtual threads, or null if the JVM has none. */
+    public static VirtualThreadPool create() {
+        ExecutorService threads = newVirtualThreadExecutor();
+        return threads == null ? null : new VirtualThreadPool(threads);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        threads.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        threads.shutdown();
+        super.doStop();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!threads.awaitTermination(1, TimeUnit.DAYS)) {
+            continue;
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /** None: a thread is started for each task instead of kept waiting for one. */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively since we compile for
+     * Java 8; returns null on JVMs without virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -29,6 +29,12 @@ function real_lrlat() { return params["ullat"] - hdpp * params["h"]; }
 
 function real_lrlon() { return params["ullon"] + wdpp * params["w"]; }
 
+// Search results are ranked around the center of the current view
+function view_center() {
+    return {lat: (params["ullat"] + params["lrlat"]) / 2,
+            lon: (params["ullon"] + params["lrlon"]) / 2};
+}
+
 $( document ).ready(function() {
     if (document.location.hostname !== "localhost") {
         host = "http://" + document.location.host;
@@ -48,13 +54,15 @@ $( document ).ready(function() {
 
     // Search bar
     $( "#tags" ).autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.getJSON(search, jQuery.extend({term: request.term}, view_center()), response);
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
-                  data: { term: ui.item.value, full: true},
+                  data: jQuery.extend({ term: ui.item.value, full: true}, view_center()),
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
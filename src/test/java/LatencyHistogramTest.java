@@ -0,0 +1,43 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(0.99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            h.record(i);
+        }
+        assertEquals(10, h.count());
+        assertEquals(55, h.sum());
+        assertEquals(5, h.percentile(0.5));
+        assertEquals(10, h.percentile(1.0));
+    }
+
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000);
+        }
+        long[] expected = {50000000L, 90000000L, 99000000L};
+        double[] quantiles = {0.5, 0.9, 0.99};
+        for (int i = 0; i < quantiles.length; i++) {
+            long p = h.percentile(quantiles[i]);
+            assertTrue(p >= expected[i]);
+            assertTrue(p <= expected[i] * 1.07);
+        }
+        assertEquals(100000000L, h.max());
+        assertEquals(100000000L, h.percentile(1.0));
+    }
+}
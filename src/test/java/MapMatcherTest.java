@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class MapMatcherTest {
+
+    private static final double LON = -122.26;
+    private static final double LAT = 37.87;
+
+    private static double lon(double x) {
+        return LON + x / (RoadGraph.METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+    }
+
+    private static double lat(double y) {
+        return LAT + y / RoadGraph.METRES_PER_DEGREE;
+    }
+
+    /**
+     * Write an OSM file of the nodes at {x, y} metres east and north of (LON, LAT), numbered
+     * from 1, joined by one-way residential ways through the nodes numbered in each of ways.
+     */
+    private static File osm(double[][] nodes, long[][] ways) throws IOException {
+        File file = File.createTempFile("matcher", ".osm");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\"?>\n<osm>\n");
+            for (int i = 0; i < nodes.length; i++) {
+                out.write("<node id=\"" + (i + 1) + "\" lat=\"" + lat(nodes[i][1]) + "\" lon=\""
+                        + lon(nodes[i][0]) + "\"/>\n");
+            }
+            for (int w = 0; w < ways.length; w++) {
+                out.write("<way id=\"" + (w + 1) + "\">\n");
+                for (long ref : ways[w]) {
+                    out.write("<nd ref=\"" + ref + "\"/>\n");
+                }
+                out.write("<tag k=\"highway\" v=\"residential\"/>\n");
+                out.write("<tag k=\"oneway\" v=\"yes\"/>\n</way>\n");
+            }
+            out.write("</osm>\n");
+        }
+        return file;
+    }
+
+    /**
+     * Two one-way streets merge at a node, one from the west, the other from the north-west;
+     * only a loop kilometres long leads from the first to the second. The middle fix lies
+     * nearest the north-west street, which no route from the first fix reaches. The candidate
+     * behind it, on the street from the west, leaves from the same node, and must search from
+     * there itself rather than reuse route lengths the unreachable candidate never computed.
+     */
+    @Test
+    public void testUnreachableCandidateSharesNoSearch() throws IOException {
+        double[][] nodes = {{0, 0}, {200, 0}, {600, 0}, {3000, 0}, {3000, 600}, {400, 600},
+            {220, 15}, {650, 15}, {700, 600}, {-1000, 600}, {-1000, 80}, {0, 80}};
+        long[][] ways = {{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 1}, {11, 12, 2}};
+        GraphDB graph = new GraphDB(osm(nodes, ways).getPath());
+        MapMatcher.Match[] matches = new MapMatcher(graph, RoadGraph.CAR).match(
+                new double[]{lon(20), lon(150), lon(560)},
+                new double[]{lat(-5), lat(18), lat(10)});
+        for (MapMatcher.Match m : matches) {
+            assertNotNull(m);
+        }
+        assertEquals(1, matches[1].getFrom());
+        assertEquals(2, matches[1].getTo());
+        assertEquals(2, matches[2].getFrom());
+        assertEquals(3, matches[2].getTo());
+    }
+}
@@ -0,0 +1,270 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RegionRouterTest {
+
+    private static JsonArray json(String text) {
+        return new JsonParser().parse(text).getAsJsonArray();
+    }
+
+    private static HttpServer serve(String path, HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(path, handler);
+        server.start();
+        return server;
+    }
+
+    /** A region answering each /routes request with <code>answer</code> of its query. */
+    private static HttpServer routingRegion(Function<String, String> answer)
+            throws IOException {
+        return serve("/routes", exchange -> {
+            byte[] body = answer.apply(exchange.getRequestURI().getQuery())
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+    }
+
+    /** The number parameter <code>name</code> of <code>query</code>. */
+    private static double param(String query, String name) {
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return Double.parseDouble(param.substring(name.length() + 1));
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * A region answering /match as MapServer does, while it reads: a line per trace, as soon
+     * as the trace's first fix is read, holding the region's name, the trace's id and then
+     * <code>padding</code> characters.
+     */
+    private static HttpServer matchingRegion(String name, int padding) throws IOException {
+        char[] pad = new char[padding];
+        Arrays.fill(pad, 'x');
+        return serve("/match", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    exchange.getRequestBody(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(
+                         exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                String last = null;
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    String id = line.substring(0, line.indexOf(','));
+                    if (!id.equals(last)) {
+                        out.write(name + " " + id + " ");
+                        out.write(pad);
+                        out.write('\n');
+                        last = id;
+                    }
+                }
+            }
+        });
+    }
+
+    private static RegionShard region(String name, double[] bounds, HttpServer server)
+            throws IOException {
+        return new RegionShard(name, bounds, new URL("http://127.0.0.1:"
+                + server.getAddress().getPort()), null, null);
+    }
+
+    /**
+     * A body of <code>traces</code> traces of <code>fixes</code> fixes each, alternating
+     * between the west and the east halves of Berkeley; generated as it is read.
+     */
+    private static Reader traces(int traces, int fixes) {
+        return new Reader() {
+            private int line;
+            private String current = "";
+            private int offset;
+
+            @Override
+            public int read(char[] buffer, int off, int len) {
+                if (offset == current.length()) {
+                    if (line == traces * fixes) {
+                        return -1;
+                    }
+                    int trace = line / fixes;
+                    double lon = (trace % 2 == 0 ? -122.28 : -122.24) + 0.0001 * (line % fixes);
+                    current = "t" + trace + "," + lon + ",37.87,2024-05-01T12:00:00Z\n";
+                    offset = 0;
+                    line += 1;
+                }
+                int n = Math.min(len, current.length() - offset);
+                current.getChars(offset, offset + n, buffer, off);
+                offset += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /** Keeps the first two fields of each line written. */
+    private static final class Heads extends Writer {
+        final List<String> lines = new ArrayList<>();
+        private final StringBuilder line = new StringBuilder();
+        private int spaces;
+
+        @Override
+        public void write(char[] buffer, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (buffer[i] == '\n') {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                    spaces = 0;
+                } else if (buffer[i] == ' ') {
+                    spaces += 1;
+                    if (spaces == 1) {
+                        line.append(' ');
+                    }
+                } else if (spaces < 2) {
+                    line.append(buffer[i]);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Regions answering while they read send back far more than the socket buffers hold
+     * before the router has sent them every trace; the router must read their answers as it
+     * sends, and still write them back in the order the traces were read.
+     */
+    @Test(timeout = 120000)
+    public void testMatchesMoreThanSocketBuffersHold() throws Exception {
+        HttpServer west = matchingRegion("west", 2000);
+        HttpServer east = matchingRegion("east", 2000);
+        try {
+            RegionRouter.setRegions(Arrays.asList(
+                    region("west", new double[]{37.9, -122.3, 37.8, -122.26}, west),
+                    region("east", new double[]{37.9, -122.26, 37.8, -122.2}, east)));
+            int traces = 20000;
+            Heads out = new Heads();
+            RegionRouter.matchAll(new BufferedReader(traces(traces, 20)), "profile=car",
+                    () -> out);
+            assertEquals(traces, out.lines.size());
+            for (int i = 0; i < traces; i++) {
+                assertEquals((i % 2 == 0 ? "west" : "east") + " t" + i, out.lines.get(i));
+            }
+        } finally {
+            west.stop(0);
+            east.stop(0);
+        }
+    }
+
+    @Test
+    public void testWithoutParams() {
+        assertEquals("profile=walk&alternatives=2", RegionRouter.withoutParams(
+                "start_lat=37.8&profile=walk&start_lon=-122.2&alternatives=2",
+                new String[]{"start_lat", "start_lon"}));
+        assertEquals("flag&b=2", RegionRouter.withoutParams("a=1&&flag&b=2&a",
+                new String[]{"a"}));
+        assertEquals("", RegionRouter.withoutParams(null, new String[]{"a"}));
+    }
+
+    @Test
+    public void testMergeInterleavesNamesAndRanksLocations() {
+        JsonArray west = json("[\"Cafe\", \"Bakery\", {\"id\": 1, \"d\": 3},"
+                + " {\"id\": 2, \"d\": 1}]");
+        JsonArray east = json("[\"Bakery\", \"Deli\", {\"id\": 2, \"d\": 1},"
+                + " {\"id\": 3, \"d\": 2}]");
+        assertEquals(json("[\"Cafe\", \"Bakery\", \"Deli\", {\"id\": 1, \"d\": 3},"
+                + " {\"id\": 2, \"d\": 1}, {\"id\": 3, \"d\": 2}]"),
+                RegionRouter.merge(Arrays.asList(west, east), null, Integer.MAX_VALUE));
+        Comparator<JsonObject> byD = Comparator.comparingDouble(l -> l.get("d").getAsDouble());
+        assertEquals(json("[{\"id\": 2, \"d\": 1}, {\"id\": 3, \"d\": 2}]"),
+                RegionRouter.merge(Arrays.asList(json("[{\"id\": 1, \"d\": 3},"
+                        + " {\"id\": 2, \"d\": 1}]"), json("[{\"id\": 3, \"d\": 2}]")),
+                        byD, 2));
+        assertEquals(json("[\"Cafe\"]"), RegionRouter.merge(Arrays.asList(west, east), byD,
+                1));
+    }
+
+    @Test
+    public void testJoinNeedsLegsToMeet() {
+        JsonObject first = json("[{\"ids\": [1, 2, 3], \"length\": 10, \"weight\": 4}]")
+                .get(0).getAsJsonObject();
+        JsonObject second = json("[{\"ids\": [3, 4], \"length\": 5, \"weight\": 2}]")
+                .get(0).getAsJsonObject();
+        JsonObject apart = json("[{\"ids\": [5, 4], \"length\": 5, \"weight\": 2}]")
+                .get(0).getAsJsonObject();
+        JsonObject joined = RegionRouter.join(first, second);
+        assertEquals(json("[1, 2, 3, 4]"), joined.get("ids").getAsJsonArray());
+        assertEquals(15, joined.get("length").getAsDouble(), 0);
+        assertEquals(6, joined.get("weight").getAsDouble(), 0);
+        assertNull(RegionRouter.join(first, apart));
+    }
+
+    /**
+     * The start's region routes to the crossings in the south of the shared box through node
+     * 10, and to those in the north, more lightly, through node 11. The end's region only
+     * routes on from node 10; from node 11 it answers a route starting elsewhere, which
+     * cannot be joined, however light.
+     */
+    @Test
+    public void testCrossingRouteJoinsLegsAtSharedNode() throws Exception {
+        AtomicInteger secondLegs = new AtomicInteger();
+        HttpServer west = routingRegion(query -> param(query, "end_lat") < 37.85
+                ? "[{\"ids\": [1, 2, 10], \"length\": 500, \"weight\": 50}]"
+                : "[{\"ids\": [1, 3, 11], \"length\": 400, \"weight\": 40}]");
+        HttpServer east = routingRegion(query -> {
+            secondLegs.incrementAndGet();
+            return param(query, "start_id") == 10
+                    ? "[{\"ids\": [10, 20, 30], \"length\": 300, \"weight\": 30}]"
+                    : "[{\"ids\": [12, 20, 30], \"length\": 100, \"weight\": 10}]";
+        });
+        try {
+            RegionShard from = region("west", new double[]{37.9, -122.3, 37.8, -122.25}, west);
+            RegionShard to = region("east", new double[]{37.9, -122.27, 37.8, -122.2}, east);
+            RegionRouter.setRegions(Arrays.asList(from, to));
+            JsonArray routes = RegionRouter.getCrossingRoute(from, to,
+                    new double[]{37.85, -122.29, 37.85, -122.21}, "profile=car&alternatives=3");
+            assertEquals(1, routes.size());
+            JsonObject route = routes.get(0).getAsJsonObject();
+            assertEquals(json("[1, 2, 10, 20, 30]"), route.get("ids").getAsJsonArray());
+            assertEquals(800, route.get("length").getAsDouble(), 0);
+            assertEquals(80, route.get("weight").getAsDouble(), 0);
+            /* One leg on from each node the crossings led to. */
+            assertEquals(2, secondLegs.get());
+        } finally {
+            west.stop(0);
+            east.stop(0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionShardTest {
+
+    private static File regions(String text) throws IOException {
+        File file = File.createTempFile("regions", ".txt");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(text);
+        }
+        return file;
+    }
+
+    private static boolean rejects(String text) throws IOException {
+        try {
+            RegionShard.readAll(regions(text).getPath());
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testReadAll() throws IOException {
+        List<RegionShard> shards = RegionShard.readAll(regions("# name bounds url [osm tiles]\n"
+                + "\n"
+                + "west 37.9,-122.3,37.8,-122.25 http://localhost:4568 west.osm west/\n"
+                + "  east\t37.9,-122.27,37.8,-122.2   http://shard.example:80  \n").getPath());
+        assertEquals(2, shards.size());
+        assertEquals("west", shards.get(0).getName());
+        assertTrue(shards.get(0).isLocal());
+        assertEquals(4568, shards.get(0).getUrl().getPort());
+        assertEquals("east", shards.get(1).getName());
+        assertFalse(shards.get(1).isLocal());
+        assertTrue(shards.get(1).contains(-122.21, 37.85));
+        assertFalse(shards.get(1).contains(-122.28, 37.85));
+    }
+
+    @Test
+    public void testReadAllRejectsMalformedLines() throws IOException {
+        assertTrue(rejects("west 37.9,-122.3,37.8,-122.25\n"));
+        assertTrue(rejects("west 37.9,-122.3,37.8 http://localhost:4568\n"));
+        assertTrue(rejects("west 37.8,-122.3,37.9,-122.25 http://localhost:4568\n"));
+        assertTrue(rejects("west 37.9,-122.3,37.8,-122.25 localhost:4568\n"));
+        /* A local region is started on its URL's port, so the URL must name one. */
+        assertTrue(rejects("west 37.9,-122.3,37.8,-122.25 http://localhost west.osm west/\n"));
+        assertFalse(rejects("west 37.9,-122.3,37.8,-122.25 http://localhost\n"));
+    }
+
+    @Test
+    public void testBorder() throws IOException {
+        List<RegionShard> shards = RegionShard.readAll(regions(
+                "west 37.9,-122.3,37.8,-122.25 http://localhost:1\n"
+                + "east 37.95,-122.27,37.85,-122.2 http://localhost:2\n"
+                + "touching 37.9,-122.25,37.8,-122.1 http://localhost:3\n"
+                + "far 37.9,-122.0,37.8,-121.9 http://localhost:4\n").getPath());
+        RegionShard west = shards.get(0);
+        assertArrayEquals(new double[]{37.9, -122.27, 37.85, -122.25},
+                west.border(shards.get(1)), 1e-12);
+        assertArrayEquals(west.border(shards.get(1)), shards.get(1).border(west), 1e-12);
+        assertArrayEquals(new double[]{37.9, -122.25, 37.8, -122.25},
+                west.border(shards.get(2)), 1e-12);
+        assertNull(west.border(shards.get(3)));
+    }
+}
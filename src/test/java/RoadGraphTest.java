@@ -0,0 +1,73 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoadGraphTest {
+
+    /** Great-circle distance in metres, on a sphere with RoadGraph's degree length. */
+    private static double haversine(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double h = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+        double radius = RoadGraph.METRES_PER_DEGREE * 180 / Math.PI;
+        return 2 * radius * Math.asin(Math.sqrt(h));
+    }
+
+    @Test
+    public void testDistancesAreGroundMetres() {
+        GraphNode west = RouterTest.node(1, -122.27, 37.87);
+        GraphNode east = RouterTest.node(2, -122.26, 37.87);
+        GraphNode north = RouterTest.node(3, -122.27, 37.88);
+        RoadGraph graph = new RoadGraph(Arrays.asList(west, east, north));
+        assertEquals(haversine(-122.27, 37.87, -122.26, 37.87),
+                graph.distance(west.getIndex(), east.getIndex()), 0.5);
+        assertEquals(haversine(-122.27, 37.87, -122.27, 37.88),
+                graph.distance(west.getIndex(), north.getIndex()), 0.5);
+        assertEquals(-122.26, graph.unprojectX(graph.x(east.getIndex())), 1e-9);
+        assertEquals(37.88, graph.unprojectY(graph.y(north.getIndex())), 1e-9);
+    }
+
+    @Test
+    public void testLowerBoundIsAdmissible() {
+        RoadGraph graph = new RoadGraph(RouterTest.grid(15, 3));
+        Random random = new Random(4);
+        for (int query = 0; query < 30; query++) {
+            int from = random.nextInt(graph.size());
+            for (int profile = 0; profile < 3; profile++) {
+                double[] dist = RouterTest.dijkstra(graph, from, profile);
+                for (int to = 0; to < graph.size(); to++) {
+                    assertTrue(graph.lowerBound(profile, from, to) <= dist[to]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMayReachAgreesWithSearch() {
+        RoadGraph graph = new RoadGraph(RouterTest.grid(15, 5));
+        for (int profile = 0; profile < 3; profile++) {
+            int routable = 0;
+            for (int from = 0; from < graph.size(); from++) {
+                double[] dist = RouterTest.dijkstra(graph, from, profile);
+                for (int to = 0; to < graph.size(); to++) {
+                    boolean reached = dist[to] < Double.POSITIVE_INFINITY;
+                    if (!graph.mayReach(profile, from, to)) {
+                        assertFalse(reached);
+                    }
+                    if (graph.isRoutable(profile, from) && graph.isRoutable(profile, to)) {
+                        assertTrue(reached);
+                    }
+                }
+                routable += graph.isRoutable(profile, from) ? 1 : 0;
+            }
+            assertEquals(graph.routableSize(profile), routable);
+            assertTrue(routable > graph.size() / 2);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import org.junit.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RouterTest {
+
+    private static final String[] HIGHWAYS = {"primary", "secondary", "tertiary",
+        "residential", "service"};
+
+    static GraphNode node(long id, double lon, double lat) {
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "", "id", "CDATA", Long.toString(id));
+        attributes.addAttribute("", "", "lon", "CDATA", Double.toString(lon));
+        attributes.addAttribute("", "", "lat", "CDATA", Double.toString(lat));
+        return new GraphNode(attributes);
+    }
+
+    /** Join a and b by a way, as MapDBHandler does; oneway is 1 for a to b, -1 for b to a. */
+    static void connect(GraphNode a, GraphNode b, String highway, float maxSpeed, int oneway) {
+        a.addConnection(b, highway, maxSpeed, oneway < 0);
+        b.addConnection(a, highway, maxSpeed, oneway > 0);
+    }
+
+    /**
+     * A jittered street grid around Berkeley with <code>size</code> x <code>size</code>
+     * nodes, random highway types and speed limits, some streets missing and some one-way.
+     */
+    static List<GraphNode> grid(int size, long seed) {
+        Random random = new Random(seed);
+        GraphNode[][] nodes = new GraphNode[size][size];
+        List<GraphNode> all = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                nodes[row][column] = node(row * size + column + 1,
+                        -122.29 + column * 0.0013 + random.nextDouble() * 0.0004,
+                        37.89 - row * 0.001 - random.nextDouble() * 0.0003);
+                all.add(nodes[row][column]);
+            }
+        }
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                for (int[] step : new int[][]{{0, 1}, {1, 0}}) {
+                    int r = row + step[0];
+                    int c = column + step[1];
+                    if (r >= size || c >= size || random.nextDouble() < 0.1) {
+                        continue;
+                    }
+                    double kind = random.nextDouble();
+                    connect(nodes[row][column], nodes[r][c],
+                            HIGHWAYS[random.nextInt(HIGHWAYS.length)],
+                            random.nextBoolean() ? 0 : 10 + random.nextInt(60),
+                            kind < 0.1 ? 1 : kind < 0.2 ? -1 : 0);
+                }
+            }
+        }
+        return all;
+    }
+
+    /** Plain Dijkstra from <code>from</code>: the lightest weight to each node. */
+    static double[] dijkstra(RoadGraph graph, int from, int profile) {
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[from] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((x, y) -> Double.compare(x[0], y[0]));
+        queue.add(new double[]{0, from});
+        while (!queue.isEmpty()) {
+            double[] next = queue.poll();
+            int v = (int) next[1];
+            if (next[0] > dist[v]) {
+                continue;
+            }
+            for (int e = graph.firstEdge(v); e < graph.lastEdge(v); e++) {
+                double dw = dist[v] + graph.weights(profile)[e];
+                if (dw < dist[graph.target(e)]) {
+                    dist[graph.target(e)] = dw;
+                    queue.add(new double[]{dw, graph.target(e)});
+                }
+            }
+        }
+        return dist;
+    }
+
+    @Test
+    public void testShortestPathMatchesDijkstra() {
+        Router router = new Router(new RoadGraph(grid(20, 1)));
+        RoadGraph graph = router.getGraph();
+        Random random = new Random(2);
+        int routed = 0;
+        for (int query = 0; query < 100; query++) {
+            int from = random.nextInt(graph.size());
+            int to = random.nextInt(graph.size());
+            for (int profile = 0; profile < 3; profile++) {
+                double expected = dijkstra(graph, from, profile)[to];
+                int[] path = router.shortestPath(from, to, profile);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertNull(path);
+                    continue;
+                }
+                assertEquals(from, path[0]);
+                assertEquals(to, path[path.length - 1]);
+                assertEquals(expected, router.weight(path, profile), 1e-6 * expected + 1e-9);
+                routed += 1;
+            }
+        }
+        assertTrue(routed > 250);
+    }
+
+    @Test
+    public void testUnreachableTargetHasNoRoute() {
+        GraphNode a = node(1, -122.26, 37.87);
+        GraphNode b = node(2, -122.259, 37.87);
+        GraphNode c = node(3, -122.258, 37.87);
+        connect(a, b, "residential", 0, 0);
+        connect(b, c, "residential", 0, 1);
+        Router router = new Router(new RoadGraph(Arrays.asList(a, b, c)));
+        assertNull(router.shortestPath(c.getIndex(), a.getIndex(), RoadGraph.CAR));
+        assertEquals(3, router.shortestPath(c.getIndex(), a.getIndex(),
+                RoadGraph.DISTANCE).length);
+    }
+
+    @Test
+    public void testAlternativesAreLightEnoughAndDistinct() {
+        Router router = new Router(new RoadGraph(grid(20, 6)));
+        RoadGraph graph = router.getGraph();
+        Random random = new Random(7);
+        int several = 0;
+        for (int query = 0; query < 50; query++) {
+            int from = random.nextInt(graph.size());
+            int to = random.nextInt(graph.size());
+            double shortest = dijkstra(graph, from, RoadGraph.CAR)[to];
+            List<int[]> routes = router.alternatives(from, to, RoadGraph.CAR, 5, 0.6, 2);
+            if (shortest == Double.POSITIVE_INFINITY) {
+                assertTrue(routes.isEmpty());
+                continue;
+            }
+            assertEquals(shortest, router.weight(routes.get(0), RoadGraph.CAR),
+                    1e-6 * shortest + 1e-9);
+            for (int[] route : routes) {
+                assertEquals(from, route[0]);
+                assertEquals(to, route[route.length - 1]);
+                assertTrue(router.weight(route, RoadGraph.CAR) <= 1.25 * shortest + 1e-6);
+                assertEquals(route.length, new HashSet<>(boxed(route)).size());
+            }
+            several += routes.size() > 1 ? 1 : 0;
+        }
+        assertTrue(several > 0);
+    }
+
+    @Test
+    public void testAlternativesToUnreachableTarget() {
+        /* One-way streets out of a hub, and on from its west end: no end can reach another,
+         * but component labels cannot rule out every direction, so both searches run until
+         * they run out of nodes. */
+        GraphNode hub = node(1, -122.26, 37.87);
+        GraphNode east = node(2, -122.259, 37.87);
+        GraphNode west = node(3, -122.261, 37.87);
+        GraphNode farWest = node(4, -122.2615, 37.87);
+        connect(hub, east, "residential", 0, 1);
+        connect(hub, west, "residential", 0, 1);
+        connect(west, farWest, "residential", 0, 1);
+        Router router = new Router(new RoadGraph(Arrays.asList(hub, east, west, farWest)));
+        for (GraphNode from : Arrays.asList(east, west, farWest)) {
+            for (GraphNode to : Arrays.asList(east, west, farWest)) {
+                if (from != to && !(from == west && to == farWest)) {
+                    assertTrue(router.alternatives(from.getIndex(), to.getIndex(),
+                            RoadGraph.CAR, 3, 0.6, 2).isEmpty());
+                    assertNull(router.shortestPath(from.getIndex(), to.getIndex(),
+                            RoadGraph.CAR));
+                }
+            }
+        }
+        assertEquals(1, router.alternatives(east.getIndex(), west.getIndex(),
+                RoadGraph.DISTANCE, 3, 0.6, 2).size());
+    }
+
+    @Test
+    public void testReachableMatchesDijkstra() {
+        Router router = new Router(new RoadGraph(grid(20, 8)));
+        RoadGraph graph = router.getGraph();
+        Random random = new Random(9);
+        for (int query = 0; query < 20; query++) {
+            int from = random.nextInt(graph.size());
+            for (int profile = 0; profile < 3; profile++) {
+                double[] dist = dijkstra(graph, from, profile);
+                double limit = profile == RoadGraph.DISTANCE ? 800 : 120;
+                int expected = 0;
+                for (double d : dist) {
+                    expected += d <= limit ? 1 : 0;
+                }
+                Isochrone isochrone = router.reachable(from, profile, limit);
+                assertEquals(expected, isochrone.size());
+                for (List<List<double[]>> polygon : isochrone.getCoordinates()) {
+                    List<double[]> ring = polygon.get(0);
+                    assertTrue(ring.size() >= 5);
+                    assertArrayEquals(ring.get(0), ring.get(ring.size() - 1), 0);
+                }
+            }
+        }
+    }
+
+    private static List<Integer> boxed(int[] route) {
+        List<Integer> nodes = new ArrayList<>();
+        for (int v : route) {
+            nodes.add(v);
+        }
+        return nodes;
+    }
+}
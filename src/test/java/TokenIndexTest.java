@@ -0,0 +1,73 @@
+import org.junit.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenIndexTest {
+
+    private static GraphNode node(long id, String name) {
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "", "id", "CDATA", Long.toString(id));
+        attributes.addAttribute("", "", "lon", "CDATA", "-122.25");
+        attributes.addAttribute("", "", "lat", "CDATA", "37.87");
+        GraphNode n = new GraphNode(attributes);
+        n.setName(name);
+        return n;
+    }
+
+    private static TokenIndex index() {
+        List<GraphNode> nodes = new ArrayList<>();
+        nodes.add(node(1, "Blaze Pizza"));
+        nodes.add(node(2, "Pizza Hut"));
+        nodes.add(node(3, "Top Dog"));
+        nodes.add(node(4, "Sliver Pizzeria"));
+        nodes.add(node(5, "Pizza Pizza"));
+        return new TokenIndex(nodes);
+    }
+
+    private static HashSet<Long> ids(List<GraphNode> nodes) {
+        HashSet<Long> ids = new HashSet<>();
+        for (GraphNode n : nodes) {
+            ids.add(n.getID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testInfixWordMatch() {
+        HashSet<Long> expected = new HashSet<>();
+        expected.add(1L);
+        expected.add(2L);
+        expected.add(5L);
+        assertEquals(expected, ids(index().search("pizza ")));
+    }
+
+    @Test
+    public void testLastWordIsPrefix() {
+        HashSet<Long> found = ids(index().search("PIZ"));
+        assertEquals(4, found.size());
+        assertTrue(found.contains(4L));
+        assertEquals(1, index().search("pizza h").size());
+        assertEquals(1, index().search("blaze pi").size());
+    }
+
+    @Test
+    public void testNoMatch() {
+        assertTrue(index().search("blaze dog").isEmpty());
+        assertTrue(index().search("burger").isEmpty());
+        assertTrue(index().search("  ").isEmpty());
+    }
+
+    @Test
+    public void testIntersect() {
+        assertArrayEquals(new int[]{3, 9, 40},
+                TokenIndex.intersect(new int[]{1, 3, 9, 40, 41}, new int[]{0, 3, 4, 9, 17, 40}));
+        assertArrayEquals(new int[]{}, TokenIndex.intersect(new int[]{5}, new int[]{}));
+    }
+}